@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares {@link Strings#slugify(String)} with the previous implementation in
+ * {@link LegacyStrings}. Run with 'mvn -Pbenchmark test-compile exec:exec'.
+ * The non-ASCII texts are served from the slug cache after the first call,
+ * {@link Uncached} measures the transliteration itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SlugifyBenchmark {
+    @Param({ "geemodule-core", "Product Catalog Module", "Größe & Übersicht @ Köln" })
+    public String text;
+
+    @Benchmark
+    public String legacy() {
+        return LegacyStrings.slugify(text);
+    }
+
+    @Benchmark
+    public String current() {
+        return Strings.slugify(text);
+    }
+
+    /**
+     * Same benchmarks with the slug cache disabled.
+     */
+    @Fork(value = 1, jvmArgsAppend = "-Dgeemodule.slugify.cache.size=0")
+    public static class Uncached extends SlugifyBenchmark {
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+/**
+ * Simple Bloom filter over the hash-codes of strings. The String class caches
+ * its hash-code, so checking a name that has been hashed before does not
+ * touch its characters at all. A negative answer is definite, a positive one
+ * only means that the name may have been added.
+ */
+final class BloomFilter {
+    private final long[] bits;
+
+    private final int numBits;
+
+    private final int numHashes;
+
+    private BloomFilter(final int numBits, final int numHashes) {
+        this.bits = new long[(numBits + 63) >>> 6];
+        this.numBits = bits.length << 6;
+        this.numHashes = numHashes;
+    }
+
+    /**
+     * Creates a filter sized for the expected number of entries at a false
+     * positive rate of about 1%.
+     */
+    static BloomFilter create(final int expectedEntries) {
+        int n = Math.max(expectedEntries, 64);
+
+        // ~9.6 bits per entry and 7 hash functions give a 1% false positive
+        // rate.
+        return new BloomFilter((int) Math.min(Integer.MAX_VALUE - 64, (long) n * 10), 7);
+    }
+
+    void add(final int hash) {
+        int h1 = hash;
+        int h2 = mix(hash);
+
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(final int hash) {
+        int h1 = hash;
+        int h2 = mix(hash);
+
+        for (int i = 0; i < numHashes; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+
+        return true;
+    }
+
+    boolean mightContain(final String s) {
+        return mightContain(s.hashCode());
+    }
+
+    /**
+     * Second, independent hash derived from the first (murmur3 finalizer).
+     */
+    private static int mix(final int hash) {
+        int h = hash;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+}
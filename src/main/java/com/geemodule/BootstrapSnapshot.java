@@ -0,0 +1,350 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Binary snapshot of the work done while bootstrapping a modules root
+ * directory: the parsed module.properties, the jars found in each lib folder,
+ * the resolved dependencies and the annotated types found in each module.
+ * Every entry carries the fingerprints of the files it was created from, so
+ * that a later bootstrap only has to redo the work for modules that have
+ * actually changed.
+ *
+ * The snapshot is written to the file '.geemodule-snapshot' in the modules
+ * root directory and read back with a single read.
+ */
+final class BootstrapSnapshot {
+    private static final Logger LOG = Logger.getLogger(BootstrapSnapshot.class.getName());
+
+    static final String FILE_NAME = ".geemodule-snapshot";
+
+    private static final int MAGIC = 0x47454D53;
+
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Snapshot data of a single module directory.
+     */
+    static final class Entry {
+        final String path;
+        final long propertiesModified;
+        final long propertiesSize;
+        final Properties config;
+        final long libModified;
+        final String[] jars;
+        final long contentFingerprint;
+        final Map<String, String[]> annotatedTypes;
+        final String uniqueId;
+        final String[] dependencies;
+
+        Entry(String path, long propertiesModified, long propertiesSize, Properties config, long libModified, String[] jars, long contentFingerprint, Map<String, String[]> annotatedTypes,
+            String uniqueId, String[] dependencies) {
+            this.path = path;
+            this.propertiesModified = propertiesModified;
+            this.propertiesSize = propertiesSize;
+            this.config = config;
+            this.libModified = libModified;
+            this.jars = jars;
+            this.contentFingerprint = contentFingerprint;
+            this.annotatedTypes = annotatedTypes;
+            this.uniqueId = uniqueId;
+            this.dependencies = dependencies;
+        }
+
+        /**
+         * True if the module.properties has not been modified since the
+         * snapshot was taken.
+         */
+        boolean isConfigCurrent(final File moduleDir) {
+            File propertiesFile = propertiesFile(moduleDir);
+            return propertiesFile.lastModified() == propertiesModified && propertiesFile.length() == propertiesSize;
+        }
+
+        /**
+         * True if no jar has been added to or removed from the lib folder.
+         */
+        boolean isLibCurrent(final File moduleDir) {
+            return libModified(moduleDir) == libModified;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+
+    BootstrapSnapshot(final Map<String, Entry> entries) {
+        this.entries = Collections.unmodifiableMap(entries);
+    }
+
+    Entry get(final String path) {
+        return entries.get(path);
+    }
+
+    Map<String, Entry> entries() {
+        return entries;
+    }
+
+    /**
+     * Loads the snapshot from the modules root directory. Returns null if no
+     * snapshot exists or if it cannot be read, in which case the caller should
+     * simply bootstrap from scratch.
+     */
+    static BootstrapSnapshot load(final File rootDir) {
+        File snapshotFile = new File(rootDir, FILE_NAME);
+
+        if (!snapshotFile.isFile())
+            return null;
+
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(snapshotFile.toPath()));
+
+            if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Ignoring bootstrap snapshot '" + snapshotFile + "' because it has an unknown format.");
+                }
+
+                return null;
+            }
+
+            int numEntries = buf.getInt();
+
+            Map<String, Entry> entries = new HashMap<>();
+
+            for (int i = 0; i < numEntries; i++) {
+                String path = readString(buf);
+                long propertiesModified = buf.getLong();
+                long propertiesSize = buf.getLong();
+
+                Properties config = new Properties();
+                int numProperties = buf.getInt();
+                for (int j = 0; j < numProperties; j++) {
+                    config.setProperty(readString(buf), readString(buf));
+                }
+
+                long libModified = buf.getLong();
+                String[] jars = readStrings(buf);
+                long contentFingerprint = buf.getLong();
+
+                Map<String, String[]> annotatedTypes = new HashMap<>();
+                int numAnnotatedTypes = buf.getInt();
+                for (int j = 0; j < numAnnotatedTypes; j++) {
+                    annotatedTypes.put(readString(buf), readStrings(buf));
+                }
+
+                String uniqueId = readString(buf);
+                String[] dependencies = readStrings(buf);
+
+                entries.put(path, new Entry(path, propertiesModified, propertiesSize, config, libModified, jars, contentFingerprint, annotatedTypes, uniqueId, dependencies));
+            }
+
+            return new BootstrapSnapshot(entries);
+        } catch (IOException | RuntimeException e) {
+            if (LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Unable to read bootstrap snapshot '" + snapshotFile + "'. Bootstrapping without it.", e);
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot to the modules root directory. A temporary file is
+     * written first and then moved into place so that a concurrently starting
+     * JVM never sees a half written snapshot. Each write uses its own
+     * temporary file, as JVMs started together all write the snapshot.
+     */
+    void write(final File rootDir) {
+        File snapshotFile = new File(rootDir, FILE_NAME);
+        File tmpFile = null;
+
+        try {
+            tmpFile = File.createTempFile(FILE_NAME, ".tmp", rootDir);
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(entries.size());
+
+                for (Entry entry : entries.values()) {
+                    writeString(out, entry.path);
+                    out.writeLong(entry.propertiesModified);
+                    out.writeLong(entry.propertiesSize);
+
+                    out.writeInt(entry.config.size());
+                    for (String key : entry.config.stringPropertyNames()) {
+                        writeString(out, key);
+                        writeString(out, entry.config.getProperty(key));
+                    }
+
+                    out.writeLong(entry.libModified);
+                    writeStrings(out, entry.jars);
+                    out.writeLong(entry.contentFingerprint);
+
+                    out.writeInt(entry.annotatedTypes.size());
+                    for (Map.Entry<String, String[]> annotatedType : entry.annotatedTypes.entrySet()) {
+                        writeString(out, annotatedType.getKey());
+                        writeStrings(out, annotatedType.getValue());
+                    }
+
+                    writeString(out, entry.uniqueId);
+                    writeStrings(out, entry.dependencies);
+                }
+            }
+
+            Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (tmpFile != null)
+                tmpFile.delete();
+
+            if (LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Unable to write bootstrap snapshot '" + snapshotFile + "'.", e);
+            }
+        }
+    }
+
+    /**
+     * The module.properties of the module directory. For a packaged module
+     * this is the archive itself, as the file cannot change on its own.
+     */
+    static File propertiesFile(final File moduleDir) {
+        return ModuleArchive.isArchive(moduleDir) ? moduleDir : new File(moduleDir, "module.properties");
+    }
+
+    /**
+     * Last modified time of the module's lib folder, which changes whenever a
+     * jar is added or removed. Returns -1 if the folder does not exist.
+     */
+    static long libModified(final File moduleDir) {
+        if (ModuleArchive.isArchive(moduleDir))
+            return moduleDir.lastModified();
+
+        File libDir = new File(moduleDir, "lib");
+        return libDir.exists() ? libDir.lastModified() : -1;
+    }
+
+    /**
+     * Creates a fingerprint of the module's classes folder and jars from the
+     * names, sizes and last modified times of the files they contain.
+     */
+    static long contentFingerprint(final File moduleDir, final String[] jars) {
+        final long[] hash = new long[] { 1125899906842597L };
+
+        if (ModuleArchive.isArchive(moduleDir))
+            return mix(hash[0], moduleDir.getAbsolutePath().hashCode(), moduleDir.lastModified(), moduleDir.length());
+
+        Path classesDir = new File(moduleDir, "classes").toPath();
+
+        if (Files.isDirectory(classesDir)) {
+            try {
+                Files.walkFileTree(classesDir, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        hash[0] = mix(hash[0], file.toString().hashCode(), attrs.lastModifiedTime().toMillis(), attrs.size());
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                // Make sure that the snapshot is not used for this module.
+                return -1;
+            }
+        }
+
+        if (jars != null) {
+            for (String jar : jars) {
+                File jarFile = new File(jar);
+                hash[0] = mix(hash[0], jar.hashCode(), jarFile.lastModified(), jarFile.length());
+            }
+        }
+
+        return hash[0];
+    }
+
+    private static long mix(final long hash, final int nameHash, final long modified, final long size) {
+        long h = hash;
+        h = 31 * h + nameHash;
+        h = 31 * h + modified;
+        h = 31 * h + size;
+        return h;
+    }
+
+    static String readString(final ByteBuffer buf) {
+        int len = buf.getInt();
+
+        if (len < 0)
+            return null;
+
+        byte[] bytes = new byte[len];
+        buf.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static String[] readStrings(final ByteBuffer buf) {
+        int len = buf.getInt();
+
+        if (len < 0)
+            return null;
+
+        String[] strings = new String[len];
+
+        for (int i = 0; i < len; i++) {
+            strings[i] = readString(buf);
+        }
+
+        return strings;
+    }
+
+    static void writeString(final DataOutputStream out, final String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static void writeStrings(final DataOutputStream out, final String[] strings) throws IOException {
+        if (strings == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(strings.length);
+
+            for (String s : strings) {
+                writeString(out, s);
+            }
+        }
+    }
+}
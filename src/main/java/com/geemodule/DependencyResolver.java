@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.osgi.framework.Version;
+
+import com.geemodule.api.Module;
+import com.geemodule.api.PackageExport;
+import com.geemodule.api.PackageImport;
+
+/**
+ * Resolves package-imports against an index of all package-exports. The
+ * exports are kept sorted by package-prefix, so all exports starting with an
+ * import's prefix are found with a single range query, and for every prefix
+ * the exporting modules are sorted by version, so that only the part matching
+ * the import's version-range needs to be looked at.
+ */
+final class DependencyResolver {
+    private static final Logger LOG = Logger.getLogger(DependencyResolver.class.getName());
+
+    private static final Comparator<Module> VERSION_ORDER = new Comparator<Module>() {
+        public int compare(Module m1, Module m2) {
+            int cmp = m1.getVersion().compareTo(m2.getVersion());
+            return cmp != 0 ? cmp : m1.toUniqueId().compareTo(m2.toUniqueId());
+        }
+    };
+
+    /**
+     * Exporting modules per package-prefix, lowest version first.
+     */
+    private final NavigableMap<String, Module[]> exports;
+
+    DependencyResolver(final Collection<Module> modules) {
+        Map<String, List<Module>> exportingModules = new TreeMap<>();
+
+        for (Module module : modules) {
+            if (!module.isActive() || module.getExportPackages() == null)
+                continue;
+
+            for (PackageExport packageExport : module.getExportPackages()) {
+                List<Module> exporters = exportingModules.get(packageExport.getPrefix());
+
+                if (exporters == null) {
+                    exporters = new ArrayList<>();
+                    exportingModules.put(packageExport.getPrefix(), exporters);
+                }
+
+                if (!exporters.contains(module)) {
+                    exporters.add(module);
+                }
+            }
+        }
+
+        NavigableMap<String, Module[]> sortedExports = new TreeMap<>();
+
+        for (Map.Entry<String, List<Module>> entry : exportingModules.entrySet()) {
+            List<Module> exporters = entry.getValue();
+            Collections.sort(exporters, VERSION_ORDER);
+            sortedExports.put(entry.getKey(), exporters.toArray(new Module[exporters.size()]));
+        }
+
+        this.exports = Collections.unmodifiableNavigableMap(sortedExports);
+    }
+
+    /**
+     * Resolves the package-imports of the module. Returns null if the module
+     * does not import any packages.
+     */
+    ModuleWiring resolve(final Module importingModule) {
+        PackageImport[] packageImports = importingModule.getImportPackages();
+
+        if (packageImports == null)
+            return null;
+
+        Module[][] exportingModules = new Module[packageImports.length][];
+
+        for (int i = 0; i < packageImports.length; i++) {
+            exportingModules[i] = findExportingModules(importingModule, packageImports[i]);
+        }
+
+        return new ModuleWiring(packageImports, exportingModules);
+    }
+
+    /**
+     * Finds all other modules with a package-export that starts with the
+     * prefix of the package-import and whose version lies within the
+     * import's version-range. The highest version comes first.
+     */
+    private Module[] findExportingModules(final Module importingModule, final PackageImport packageImport) {
+        String prefix = packageImport.getPrefix();
+        Versions.Range versionRange = packageImport instanceof PackageImportImpl ? ((PackageImportImpl) packageImport).getRange() : Versions.range(packageImport.getVersionRange());
+
+        if (versionRange.isEmpty())
+            return new Module[0];
+
+        Set<Module> matches = new LinkedHashSet<>();
+
+        for (Module[] exporters : exports.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+            for (int i = firstCandidate(exporters, versionRange); i < exporters.length; i++) {
+                Module exportingModule = exporters[i];
+
+                // Beyond the upper bound of the range, all remaining modules
+                // have an even higher version.
+                if (versionRange.isAbove(exportingModule.getVersion(), Versions.pack(exportingModule.getVersion())))
+                    break;
+
+                // Make sure that we are looking in *other* modules
+                if (exportingModule.equals(importingModule))
+                    continue;
+
+                if (LOG.isLoggable(Level.FINEST)) {
+                    LOG.finest("Adding dependency '" + exportingModule.toUniqueId() + "' to '" + importingModule.toUniqueId() + "'");
+                }
+
+                matches.add(exportingModule);
+            }
+        }
+
+        List<Module> sortedMatches = new ArrayList<>(matches);
+        Collections.sort(sortedMatches, Collections.reverseOrder(VERSION_ORDER));
+
+        return sortedMatches.toArray(new Module[sortedMatches.size()]);
+    }
+
+    /**
+     * Binary search for the first module whose version is not below the lower
+     * bound of the version-range.
+     */
+    private static int firstCandidate(final Module[] exporters, final Versions.Range versionRange) {
+        int low = 0;
+        int high = exporters.length;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            Version version = exporters[mid].getVersion();
+
+            if (versionRange.isBelow(version, Versions.pack(version))) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.geemodule.api.Module;
+import com.geemodule.api.PackageExport;
+import com.geemodule.api.PackageImport;
+
+/**
+ * Immutable trie of all package-exports, with one node per package segment.
+ * Every node holds the modules exporting that package, ordered by version
+ * (highest first), so that finding the module for a class is a single walk
+ * along the segments of the class-name. The deepest match is the most
+ * specific package-export.
+ *
+ * Package-exports are matched with String.startsWith() semantics, so an
+ * export like 'com.a.b' also matches the class 'com.a.bc.Example'. These
+ * exports are additionally kept as partial matches in the parent node.
+ *
+ * As the modules of a node are ordered by version, a version-range only
+ * needs to look at the part of them that lies within the range.
+ */
+final class ExportIndex {
+    private static final Candidate[] NO_CANDIDATES = new Candidate[0];
+
+    private static final Partial[] NO_PARTIALS = new Partial[0];
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    /**
+     * A module exporting a package-prefix.
+     */
+    static final class Candidate {
+        final Module module;
+        final String prefix;
+        final long versionKey;
+
+        private Candidate(final Module module, final String prefix) {
+            this.module = module;
+            this.prefix = prefix;
+            this.versionKey = Versions.pack(module.getVersion());
+        }
+    }
+
+    /**
+     * Modules exporting a package-prefix whose last segment is only the
+     * beginning of a class-name segment.
+     */
+    private static final class Partial {
+        private final String segment;
+        private final Candidate[] candidates;
+
+        private Partial(final String segment, final Candidate[] candidates) {
+            this.segment = segment;
+            this.candidates = candidates;
+        }
+    }
+
+    private static final class Node {
+        private final String segment;
+        private final int hash;
+        private Node[] children = NO_CHILDREN;
+        private Candidate[] candidates = NO_CANDIDATES;
+        private Partial[] partials = NO_PARTIALS;
+
+        private Node(final String segment) {
+            this.segment = segment;
+            this.hash = segment.hashCode();
+        }
+
+        /**
+         * Finds the child for the segment className[start, end) without
+         * creating a substring. The children are kept in an open addressing
+         * hash-table.
+         */
+        private Node child(final String className, final int start, final int end) {
+            Node[] table = children;
+
+            if (table.length == 0)
+                return null;
+
+            int len = end - start;
+            int h = 0;
+
+            for (int i = start; i < end; i++) {
+                h = 31 * h + className.charAt(i);
+            }
+
+            int mask = table.length - 1;
+
+            for (int i = spread(h) & mask;; i = (i + 1) & mask) {
+                Node child = table[i];
+
+                if (child == null)
+                    return null;
+
+                if (child.hash == h && child.segment.length() == len && className.regionMatches(start, child.segment, 0, len))
+                    return child;
+            }
+        }
+    }
+
+    /**
+     * Mutable node used while building the index.
+     */
+    private static final class Builder {
+        private final Map<String, Builder> children = new LinkedHashMap<>();
+        private final List<Candidate> candidates = new ArrayList<>();
+        private final Map<String, List<Candidate>> partials = new LinkedHashMap<>();
+
+        private Builder child(final String segment) {
+            Builder child = children.get(segment);
+
+            if (child == null) {
+                child = new Builder();
+                children.put(segment, child);
+            }
+
+            return child;
+        }
+
+        private Node build(final String segment) {
+            Node node = new Node(segment);
+
+            if (!children.isEmpty()) {
+                int size = Integer.highestOneBit(children.size() * 2 - 1) << 1;
+                Node[] table = new Node[size];
+
+                for (Map.Entry<String, Builder> entry : children.entrySet()) {
+                    Node child = entry.getValue().build(entry.getKey());
+
+                    int i = spread(child.hash) & (size - 1);
+
+                    while (table[i] != null) {
+                        i = (i + 1) & (size - 1);
+                    }
+
+                    table[i] = child;
+                }
+
+                node.children = table;
+            }
+
+            if (!candidates.isEmpty()) {
+                Collections.sort(candidates, CANDIDATE_ORDER);
+                node.candidates = candidates.toArray(new Candidate[candidates.size()]);
+            }
+
+            if (!partials.isEmpty()) {
+                List<Partial> partialList = new ArrayList<>();
+
+                for (Map.Entry<String, List<Candidate>> entry : partials.entrySet()) {
+                    List<Candidate> partialCandidates = entry.getValue();
+                    Collections.sort(partialCandidates, CANDIDATE_ORDER);
+                    partialList.add(new Partial(entry.getKey(), partialCandidates.toArray(new Candidate[partialCandidates.size()])));
+                }
+
+                // Longest segment first, as that is the more specific export.
+                Collections.sort(partialList, new Comparator<Partial>() {
+                    public int compare(Partial p1, Partial p2) {
+                        return p2.segment.length() - p1.segment.length();
+                    }
+                });
+
+                node.partials = partialList.toArray(new Partial[partialList.size()]);
+            }
+
+            return node;
+        }
+    }
+
+    /**
+     * Highest version first. Modules with the same version are ordered by
+     * their unique id, so that the result does not depend on the order in
+     * which the modules were added.
+     */
+    private static final Comparator<Candidate> CANDIDATE_ORDER = new Comparator<Candidate>() {
+        public int compare(Candidate c1, Candidate c2) {
+            int cmp = Versions.compare(c2.module.getVersion(), c2.versionKey, c1.module.getVersion(), c1.versionKey);
+            return cmp != 0 ? cmp : c1.module.toUniqueId().compareTo(c2.module.toUniqueId());
+        }
+    };
+
+    private final Node root;
+
+    private ExportIndex(final Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Creates the index from the package-exports of all active modules.
+     */
+    static ExportIndex build(final Collection<Module> modules) {
+        Builder root = new Builder();
+
+        for (Module module : modules) {
+            if (!module.isActive() || module.getExportPackages() == null)
+                continue;
+
+            for (PackageExport packageExport : module.getExportPackages()) {
+                String prefix = packageExport.getPrefix();
+                Candidate candidate = new Candidate(module, prefix);
+
+                Builder parent = root;
+                int start = 0;
+                int dot;
+
+                while ((dot = prefix.indexOf('.', start)) != -1) {
+                    parent = parent.child(prefix.substring(start, dot));
+                    start = dot + 1;
+                }
+
+                String lastSegment = prefix.substring(start);
+
+                // Exact segment match, e.g. 'com.a.b' for 'com.a.b.Example'.
+                if (!lastSegment.isEmpty()) {
+                    parent.child(lastSegment).candidates.add(candidate);
+                }
+
+                // Partial segment match, e.g. 'com.a.b' for 'com.a.bc.Example'
+                // or 'com.a.b.' for 'com.a.b.Example'.
+                List<Candidate> partialCandidates = parent.partials.get(lastSegment);
+
+                if (partialCandidates == null) {
+                    partialCandidates = new ArrayList<>();
+                    parent.partials.put(lastSegment, partialCandidates);
+                }
+
+                partialCandidates.add(candidate);
+            }
+        }
+
+        return new ExportIndex(root.build(""));
+    }
+
+    /**
+     * Finds the module with the most specific package-export for the
+     * class-name that also satisfies the optional lookup parameters. See
+     * {@link ModuleLoaderImpl#locateModule(String, String, String, String, Collection, PackageImport, String)}
+     * for the meaning of the parameters.
+     */
+    Module find(final String className, final String moduleName, final String moduleVendor, final Versions.Range versionRange, final Collection<Module> inModules,
+        final PackageImport forPackageImport, final String ignoreModuleName) {
+        if (versionRange != null && versionRange.isEmpty())
+            return null;
+
+        return find(root, className, 0, moduleName, moduleVendor, versionRange, inModules, forPackageImport, ignoreModuleName);
+    }
+
+    private Module find(final Node node, final String className, final int start, final String moduleName, final String moduleVendor, final Versions.Range versionRange,
+        final Collection<Module> inModules, final PackageImport forPackageImport, final String ignoreModuleName) {
+        if (start < className.length()) {
+            int dot = className.indexOf('.', start);
+            int end = dot == -1 ? className.length() : dot;
+
+            // Deeper matches are more specific, so try those first.
+            if (dot != -1) {
+                Node child = node.child(className, start, end);
+
+                if (child != null) {
+                    Module m = find(child, className, dot + 1, moduleName, moduleVendor, versionRange, inModules, forPackageImport, ignoreModuleName);
+
+                    if (m != null)
+                        return m;
+                }
+            } else {
+                Node child = node.child(className, start, end);
+
+                if (child != null) {
+                    Module m = select(child.candidates, moduleName, moduleVendor, versionRange, inModules, forPackageImport, ignoreModuleName);
+
+                    if (m != null)
+                        return m;
+                }
+            }
+
+            int len = end - start;
+
+            for (Partial partial : node.partials) {
+                // Exact segment matches have already been checked above.
+                if (partial.segment.length() < len && className.startsWith(partial.segment, start)) {
+                    Module m = select(partial.candidates, moduleName, moduleVendor, versionRange, inModules, forPackageImport, ignoreModuleName);
+
+                    if (m != null)
+                        return m;
+                }
+            }
+        }
+
+        return select(node.candidates, moduleName, moduleVendor, versionRange, inModules, forPackageImport, ignoreModuleName);
+    }
+
+    private Module select(final Candidate[] candidates, final String moduleName, final String moduleVendor, final Versions.Range versionRange, final Collection<Module> inModules,
+        final PackageImport forPackageImport, final String ignoreModuleName) {
+        for (int i = versionRange == null ? 0 : firstNotAbove(candidates, versionRange); i < candidates.length; i++) {
+            Candidate candidate = candidates[i];
+            Module module = candidate.module;
+
+            // Below the lower bound of the range, all remaining modules have
+            // an even lower version.
+            if (versionRange != null && versionRange.isBelow(module.getVersion(), candidate.versionKey))
+                break;
+
+            if (ignoreModuleName != null && ignoreModuleName.equals(module.getName()))
+                continue;
+
+            if (moduleName != null && !moduleName.equals(module.getName()))
+                continue;
+
+            if (moduleVendor != null && !moduleVendor.equals(module.getVendor()))
+                continue;
+
+            if (inModules != null && !inModules.contains(module))
+                continue;
+
+            if (forPackageImport != null && !module.hasMatchingPackageExport(forPackageImport.getPrefix(), forPackageImport.getVersionRange()))
+                continue;
+
+            return module;
+        }
+
+        return null;
+    }
+
+    /**
+     * Binary search for the first candidate whose version is not above the
+     * upper bound of the version-range.
+     */
+    private static int firstNotAbove(final Candidate[] candidates, final Versions.Range versionRange) {
+        int low = 0;
+        int high = candidates.length;
+
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+
+            if (versionRange.isAbove(candidates[mid].module.getVersion(), candidates[mid].versionKey)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private static int spread(final int h) {
+        return h ^ (h >>> 16);
+    }
+}
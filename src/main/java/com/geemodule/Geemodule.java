@@ -19,10 +19,15 @@ package com.geemodule;
 import java.io.FileInputStream;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.geemodule.api.BootstrapListener;
 import com.geemodule.api.ModuleCache;
 import com.geemodule.api.ModuleLoader;
 
@@ -35,7 +40,12 @@ import com.geemodule.api.ModuleLoader;
 public final class Geemodule {
     private static final Logger LOG = Logger.getLogger(Geemodule.class.getName());
 
-    private static volatile Map<String, ModuleLoader> moduleLoaderCache = new ConcurrentHashMap<>();
+    /**
+     * Module-loaders by root-modules-path. The future is added before
+     * bootstrapping starts, so that concurrent callers for the same path wait
+     * for the same module-loader instead of bootstrapping it again.
+     */
+    private static final Map<String, CompletableFuture<ModuleLoader>> moduleLoaderCache = new ConcurrentHashMap<>();
 
     private Geemodule() {
     }
@@ -72,6 +82,81 @@ public final class Geemodule {
      * </ol>
      */
     public static final ModuleLoader createModuleLoader(final String rootModulesPath, final ModuleCache moduleCache) {
+        String _rootModulesPath = findRootModulesPath(rootModulesPath);
+
+        CompletableFuture<ModuleLoader> newFuture = new CompletableFuture<>();
+        CompletableFuture<ModuleLoader> future = moduleLoaderCache.putIfAbsent(_rootModulesPath, newFuture);
+
+        if (future == null) {
+            future = newFuture;
+
+            try {
+                newFuture.complete(new ModuleLoaderImpl().bootstrap(_rootModulesPath));
+            } catch (RuntimeException | Error e) {
+                moduleLoaderCache.remove(_rootModulesPath, newFuture);
+                newFuture.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new ModuleException(cause);
+        }
+    }
+
+    public static final CompletableFuture<ModuleLoader> createModuleLoaderAsync(final String rootModulesPath) {
+        return createModuleLoaderAsync(rootModulesPath, null, null);
+    }
+
+    /**
+     * Same as {@link #createModuleLoader(String, ModuleCache)}, but returns
+     * immediately and bootstraps the module-loader on a separate thread. The
+     * listener, if given, is told about each completed bootstrap phase.
+     * Callers asking for a module-loader that is already being bootstrapped
+     * share its result and do not receive phase notifications.
+     */
+    public static final CompletableFuture<ModuleLoader> createModuleLoaderAsync(final String rootModulesPath, final ModuleCache moduleCache, final BootstrapListener listener) {
+        final String _rootModulesPath;
+
+        try {
+            _rootModulesPath = findRootModulesPath(rootModulesPath);
+        } catch (RuntimeException e) {
+            CompletableFuture<ModuleLoader> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        final CompletableFuture<ModuleLoader> newFuture = new CompletableFuture<>();
+        CompletableFuture<ModuleLoader> future = moduleLoaderCache.putIfAbsent(_rootModulesPath, newFuture);
+
+        if (future == null) {
+            future = newFuture;
+
+            new ModuleLoaderImpl().bootstrapAsync(_rootModulesPath, listener).whenComplete(new BiConsumer<ModuleLoader, Throwable>() {
+                public void accept(ModuleLoader moduleLoader, Throwable t) {
+                    if (t == null) {
+                        newFuture.complete(moduleLoader);
+                    } else {
+                        moduleLoaderCache.remove(_rootModulesPath, newFuture);
+                        newFuture.completeExceptionally(t);
+                    }
+                }
+            });
+        }
+
+        // Callers get their own stage, so that cancelling it does not affect
+        // the shared one.
+        return future.thenApply(Function.<ModuleLoader> identity());
+    }
+
+    /**
+     * Determines the root-modules-path as described in
+     * {@link #createModuleLoader(String, ModuleCache)}.
+     */
+    private static final String findRootModulesPath(final String rootModulesPath) {
         String _rootModulesPath = rootModulesPath;
 
         // Root modules path not passed as parameter. Lets check the
@@ -118,23 +203,6 @@ public final class Geemodule {
             }
         }
 
-        ModuleLoader moduleLoader = moduleLoaderCache.get(_rootModulesPath);
-
-        if (moduleLoader == null) {
-            synchronized (_rootModulesPath) {
-                moduleLoader = moduleLoaderCache.get(_rootModulesPath);
-
-                if (moduleLoader == null) {
-                    moduleLoader = new ModuleLoaderImpl();
-                    moduleLoader = moduleLoader.bootstrap(_rootModulesPath);
-                    ModuleLoader cachedModuleLoader = moduleLoaderCache.putIfAbsent(_rootModulesPath, moduleLoader);
-
-                    if (cachedModuleLoader != null)
-                        moduleLoader = cachedModuleLoader;
-                }
-            }
-        }
-
-        return moduleLoader;
+        return _rootModulesPath;
     }
 }
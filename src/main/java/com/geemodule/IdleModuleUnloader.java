@@ -0,0 +1,245 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.geemodule.api.Module;
+
+/**
+ * Unloads modules that have not been used for the configured time
+ * ('geemodule.unload.idle' in milliseconds, disabled by default). A module
+ * counts as used whenever its class-loader is asked for or a class or
+ * resource is looked up in it, including hits in the caches of the
+ * PublicClassLoader and the resource index. Unloading drops the module's
+ * class-loader, content index and cached query results, so that the
+ * class-loader and its classes can be garbage collected. The module is
+ * activated again on next use, see {@link ModuleImpl#activate()}.
+ *
+ * Modules with running bootstraps are not unloaded. Their bootstraps are
+ * only shut down together with the module-loader, never because of a timer,
+ * as they may be working without any lookup reaching the module. Modules
+ * that an active module depends on are not unloaded either, as the
+ * dependent module's classes may be linked against theirs. If a
+ * class-loader is still referenced when its module is used again, it is
+ * re-used instead of creating a new one, so that no class is ever defined
+ * twice, and the module is not started again. The metaspace freed is logged
+ * once a dropped class-loader has been collected.
+ */
+final class IdleModuleUnloader {
+    private static final Logger LOG = Logger.getLogger(IdleModuleUnloader.class.getName());
+
+    static final long IDLE_TIMEOUT = Long.getLong("geemodule.unload.idle", 0);
+
+    private static final String METASPACE_POOL = "Metaspace";
+
+    private final ModuleLoaderImpl moduleLoader;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ReferenceQueue<ClassLoader> collectedClassLoaders = new ReferenceQueue<>();
+
+    /**
+     * Metaspace usage at the time of unloading, by dropped class-loader.
+     */
+    private final Map<Reference<? extends ClassLoader>, Unloaded> unloaded = new ConcurrentHashMap<>();
+
+    private final AtomicLong unloadCount = new AtomicLong();
+
+    private final AtomicLong collectedCount = new AtomicLong();
+
+    private final AtomicLong freedMetaspace = new AtomicLong();
+
+    private static final class Unloaded {
+        private final String moduleId;
+        private final long metaspaceUsed;
+
+        private Unloaded(final String moduleId, final long metaspaceUsed) {
+            this.moduleId = moduleId;
+            this.metaspaceUsed = metaspaceUsed;
+        }
+    }
+
+    private IdleModuleUnloader(final ModuleLoaderImpl moduleLoader) {
+        this.moduleLoader = moduleLoader;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "geemodule-idle-unloader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Starts checking for idle modules a few times per idle period.
+     */
+    static IdleModuleUnloader start(final ModuleLoaderImpl moduleLoader) {
+        final IdleModuleUnloader unloader = new IdleModuleUnloader(moduleLoader);
+        long interval = Math.max(1000, IDLE_TIMEOUT / 4);
+
+        unloader.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    unloader.unloadIdleModules();
+                    unloader.reportCollected();
+                } catch (RuntimeException e) {
+                    if (LOG.isLoggable(Level.WARNING)) {
+                        LOG.log(Level.WARNING, "Unable to unload idle modules.", e);
+                    }
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+
+        return unloader;
+    }
+
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Forgets a dropped class-loader that has been taken into use again.
+     */
+    void revived(final Reference<? extends ClassLoader> classLoaderRef) {
+        unloaded.remove(classLoaderRef);
+    }
+
+    final void unloadIdleModules() {
+        long unusedSince = System.currentTimeMillis() - IDLE_TIMEOUT;
+        Collection<Module> modules = moduleLoader.getLoadedModules();
+
+        List<ModuleImpl> activated = new ArrayList<>();
+
+        for (Module module : modules) {
+            if (module instanceof ModuleImpl && ((ModuleImpl) module).isActivated())
+                activated.add((ModuleImpl) module);
+        }
+
+        Set<ModuleImpl> idle = new HashSet<>();
+
+        for (ModuleImpl module : activated) {
+            if (module.getLastUsed() <= unusedSince)
+                idle.add(module);
+        }
+
+        // Keep idle modules that a module staying active depends on, until
+        // nothing changes any more.
+        boolean changed = true;
+
+        while (changed && !idle.isEmpty()) {
+            changed = false;
+
+            for (ModuleImpl module : activated) {
+                if (idle.contains(module))
+                    continue;
+
+                Collection<Module> dependencies = module.getDependencies();
+
+                if (dependencies != null) {
+                    for (Module dependency : dependencies) {
+                        if (idle.remove(dependency))
+                            changed = true;
+                    }
+                }
+            }
+        }
+
+        if (idle.isEmpty())
+            return;
+
+        long metaspaceUsed = metaspaceUsed();
+        int count = 0;
+
+        for (ModuleImpl module : idle) {
+            Reference<? extends ClassLoader> classLoaderRef = module.unload(unusedSince, collectedClassLoaders);
+
+            if (classLoaderRef != null) {
+                unloaded.put(classLoaderRef, new Unloaded(module.toUniqueId(), metaspaceUsed));
+                unloadCount.incrementAndGet();
+                count++;
+
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Unloaded idle module " + module.toUniqueId() + ".");
+                }
+            }
+        }
+
+        // Cached lookup results may still reference classes of the unloaded
+        // modules.
+        if (count > 0)
+            moduleLoader.modulesUnloaded();
+    }
+
+    /**
+     * Logs the class-loaders that have been garbage collected since the last
+     * check, together with the metaspace freed since their module was
+     * unloaded. As other classes may have been loaded in the meantime, the
+     * figure is an approximation.
+     */
+    final void reportCollected() {
+        Reference<? extends ClassLoader> ref;
+
+        while ((ref = collectedClassLoaders.poll()) != null) {
+            Unloaded u = unloaded.remove(ref);
+
+            if (u == null)
+                continue;
+
+            long freed = Math.max(0, u.metaspaceUsed - metaspaceUsed());
+            collectedCount.incrementAndGet();
+            freedMetaspace.addAndGet(freed);
+
+            if (LOG.isLoggable(Level.INFO)) {
+                LOG.info("Class-loader of unloaded module " + u.moduleId + " has been collected. Approximately " + (freed / 1024) + "KB of metaspace freed ("
+                    + (freedMetaspace.get() / 1024) + "KB in total).");
+            }
+        }
+    }
+
+    private static long metaspaceUsed() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (METASPACE_POOL.equals(pool.getName()))
+                return pool.getUsage().getUsed();
+        }
+
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "IdleModuleUnloader [idleTimeout=" + IDLE_TIMEOUT + ", unloaded=" + unloadCount.get() + ", collected=" + collectedCount.get() + ", freedMetaspace="
+            + freedMetaspace.get() + "]";
+    }
+}
@@ -0,0 +1,543 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A packaged module: a single jar or zip file containing the
+ * module.properties and the same 'classes', 'lib', 'resources' and 'web'
+ * folders as a module directory. The file is memory-mapped once and its
+ * central directory read into an entry table, so that classes and resources
+ * are served from memory without opening any files. Stored (uncompressed)
+ * entries are handed out as slices of the mapping, also for the jars in the
+ * 'lib' folder, which are archives themselves.
+ *
+ * URLs of entries use the 'jar' scheme, e.g.
+ * 'jar:file:/modules/a.jar!/resources/conf.txt', but are opened through the
+ * archive and not through the JDK's jar handler.
+ */
+final class ModuleArchive implements Closeable {
+    private static final Logger LOG = Logger.getLogger(ModuleArchive.class.getName());
+
+    static final String MODULE_PROPERTIES = "module.properties";
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+
+    private static final int CENTRAL_HEADER = 0x02014b50;
+
+    private static final int END_HEADER = 0x06054b50;
+
+    private static final int ZIP64_END_HEADER = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+
+    private static final int END_SIZE = 22;
+
+    private static final int STORED = 0;
+
+    private static final int DEFLATED = 8;
+
+    private static final long UNSIGNED_INT = 0xFFFFFFFFL;
+
+    private static final class Entry {
+        private final int method;
+        private final int compressedSize;
+        private final int size;
+        private final int headerOffset;
+        private volatile int dataOffset = -1;
+
+        private Entry(final int method, final int compressedSize, final int size, final int headerOffset) {
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.headerOffset = headerOffset;
+        }
+    }
+
+    private final String location;
+
+    private final File file;
+
+    private final ByteBuffer buffer;
+
+    private final Map<String, Entry> entries;
+
+    /**
+     * All entry names, sorted, for listing folders.
+     */
+    private final String[] names;
+
+    private final URLStreamHandler urlHandler = new URLStreamHandler() {
+        @Override
+        protected URLConnection openConnection(final URL url) throws IOException {
+            String spec = url.getFile();
+            return new EntryConnection(url, spec.substring(spec.lastIndexOf("!/") + 2));
+        }
+    };
+
+    private final ConcurrentMap<String, ModuleArchive> nestedArchives = new ConcurrentHashMap<>();
+
+    private FileSystem fileSystem = null;
+
+    private ModuleArchive(final String location, final File file, final ByteBuffer buffer) throws IOException {
+        this.location = location;
+        this.file = file;
+        this.buffer = buffer.order(ByteOrder.LITTLE_ENDIAN);
+        this.entries = readCentralDirectory();
+
+        this.names = entries.keySet().toArray(new String[entries.size()]);
+        Arrays.sort(names);
+    }
+
+    /**
+     * Checks whether the file in the modules root directory is a packaged
+     * module rather than a module directory.
+     */
+    static boolean isArchive(final File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        return (name.endsWith(".jar") || name.endsWith(".zip")) && file.isFile();
+    }
+
+    static ModuleArchive open(final File file) throws IOException {
+        long start = System.currentTimeMillis();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Module archive '" + file + "' is larger than 2GB.");
+
+            // The mapping stays valid after the channel has been closed.
+            ModuleArchive archive = new ModuleArchive("file:" + file.getAbsoluteFile().toURI().getRawPath(), file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Opened module archive '" + file + "' with " + archive.entries.size() + " entries in " + (System.currentTimeMillis() - start) + "ms.");
+            }
+
+            return archive;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    boolean contains(final String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * Returns the content of the entry, or null if it does not exist. Stored
+     * entries are a read-only slice of the mapped file, compressed ones are
+     * inflated into a heap buffer.
+     */
+    ByteBuffer read(final String name) throws IOException {
+        Entry entry = entries.get(name);
+        return entry == null ? null : read(name, entry);
+    }
+
+    InputStream openStream(final String name) throws IOException {
+        ByteBuffer content = read(name);
+
+        if (content == null)
+            return null;
+
+        if (content.hasArray())
+            return new ByteArrayInputStream(content.array(), content.arrayOffset() + content.position(), content.remaining());
+
+        return new ByteBufferInputStream(content);
+    }
+
+    /**
+     * Names of all files below the folder, e.g. 'classes/'. Folder entries
+     * are not included.
+     */
+    List<String> list(final String folder) {
+        List<String> files = new ArrayList<>();
+
+        int i = Arrays.binarySearch(names, folder);
+
+        for (i = i < 0 ? -i - 1 : i; i < names.length && names[i].startsWith(folder); i++) {
+            if (!names[i].endsWith("/"))
+                files.add(names[i]);
+        }
+
+        return files;
+    }
+
+    /**
+     * Names of the files directly in the folder, not in sub-folders.
+     */
+    List<String> listFiles(final String folder) {
+        List<String> files = new ArrayList<>();
+
+        for (String name : list(folder)) {
+            if (name.indexOf('/', folder.length()) == -1)
+                files.add(name);
+        }
+
+        return files;
+    }
+
+    /**
+     * Opens an archive contained in this archive, like a jar in the 'lib'
+     * folder. The nested archive is only read once.
+     */
+    ModuleArchive openNested(final String name) throws IOException {
+        ModuleArchive nested = nestedArchives.get(name);
+
+        if (nested == null) {
+            ByteBuffer content = read(name);
+
+            if (content == null)
+                throw new FileNotFoundException(location + "!/" + name);
+
+            nested = new ModuleArchive(location + "!/" + name, null, content);
+
+            ModuleArchive existing = nestedArchives.putIfAbsent(name, nested);
+
+            if (existing != null)
+                nested = existing;
+        }
+
+        return nested;
+    }
+
+    /**
+     * The URL of the entry. Folders, like 'classes/', need not exist as
+     * entries of their own.
+     */
+    URL toURL(final String name) {
+        try {
+            return new URL("jar", "", -1, location + "!/" + name, urlHandler);
+        } catch (MalformedURLException e) {
+            throw new ModuleException(e);
+        }
+    }
+
+    /**
+     * A zip file-system over the archive, for the {@link java.nio.file.Path}
+     * based methods of the module API. Only created when one of these is
+     * used, as the module itself reads everything from the entry table.
+     */
+    synchronized FileSystem getFileSystem() {
+        if (fileSystem == null) {
+            if (file == null)
+                throw new ModuleException("Nested archive '" + location + "' has no file-system.");
+
+            try {
+                fileSystem = FileSystems.newFileSystem(file.toPath(), (ClassLoader) null);
+            } catch (IOException e) {
+                throw new ModuleException("Unable to open file-system for module archive '" + file + "'.", e);
+            }
+        }
+
+        return fileSystem;
+    }
+
+    /**
+     * Closes the zip file-system, if it has been opened. The mapping itself
+     * cannot be released explicitly and goes away with the last reference to
+     * the archive.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (fileSystem != null) {
+            fileSystem.close();
+            fileSystem = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return location;
+    }
+
+    private ByteBuffer read(final String name, final Entry entry) throws IOException {
+        int offset = dataOffset(name, entry);
+
+        ByteBuffer data = buffer.duplicate();
+        data.limit(offset + entry.compressedSize).position(offset);
+
+        if (entry.method == STORED)
+            return data.slice().asReadOnlyBuffer();
+
+        byte[] compressed = new byte[entry.compressedSize];
+        data.get(compressed);
+
+        byte[] content = new byte[entry.size];
+        Inflater inflater = new Inflater(true);
+
+        try {
+            inflater.setInput(compressed);
+
+            int n = 0;
+
+            while (n < content.length) {
+                int inflated = inflater.inflate(content, n, content.length - n);
+
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IOException("Truncated entry '" + name + "' in module archive '" + location + "'.");
+
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt entry '" + name + "' in module archive '" + location + "'.", e);
+        } finally {
+            inflater.end();
+        }
+
+        return ByteBuffer.wrap(content);
+    }
+
+    /**
+     * Offset of the entry's data, which follows the local header. Only
+     * determined on first access, so that opening the archive does not touch
+     * every local header.
+     */
+    private int dataOffset(final String name, final Entry entry) throws IOException {
+        int offset = entry.dataOffset;
+
+        if (offset == -1) {
+            int header = entry.headerOffset;
+
+            if (buffer.getInt(header) != LOCAL_HEADER)
+                throw new IOException("Invalid local header of entry '" + name + "' in module archive '" + location + "'.");
+
+            offset = header + 30 + (buffer.getShort(header + 26) & 0xFFFF) + (buffer.getShort(header + 28) & 0xFFFF);
+            entry.dataOffset = offset;
+        }
+
+        return offset;
+    }
+
+    private Map<String, Entry> readCentralDirectory() throws IOException {
+        int end = findEndHeader();
+
+        long count = buffer.getShort(end + 10) & 0xFFFF;
+        long offset = buffer.getInt(end + 16) & UNSIGNED_INT;
+
+        // Zip64 archives keep the real values in an additional record.
+        int locator = end - 20;
+
+        if (locator >= 0 && buffer.getInt(locator) == ZIP64_LOCATOR) {
+            int zip64End = checkedOffset(buffer.getLong(locator + 8));
+
+            if (buffer.getInt(zip64End) == ZIP64_END_HEADER) {
+                count = buffer.getLong(zip64End + 32);
+                offset = buffer.getLong(zip64End + 48);
+            }
+        }
+
+        Map<String, Entry> entryTable = new HashMap<>((int) Math.min(count, Integer.MAX_VALUE / 2) * 4 / 3 + 1);
+        int pos = checkedOffset(offset);
+
+        for (long i = 0; i < count; i++) {
+            if (buffer.getInt(pos) != CENTRAL_HEADER)
+                throw new IOException("Invalid central directory in module archive '" + location + "'.");
+
+            int flags = buffer.getShort(pos + 8) & 0xFFFF;
+            int method = buffer.getShort(pos + 10) & 0xFFFF;
+            long compressedSize = buffer.getInt(pos + 20) & UNSIGNED_INT;
+            long size = buffer.getInt(pos + 24) & UNSIGNED_INT;
+            int nameLength = buffer.getShort(pos + 28) & 0xFFFF;
+            int extraLength = buffer.getShort(pos + 30) & 0xFFFF;
+            int commentLength = buffer.getShort(pos + 32) & 0xFFFF;
+            long headerOffset = buffer.getInt(pos + 42) & UNSIGNED_INT;
+
+            byte[] nameBytes = new byte[nameLength];
+            ByteBuffer nameBuffer = buffer.duplicate();
+            nameBuffer.position(pos + 46);
+            nameBuffer.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // Sizes and offset that do not fit are in the zip64 extra field.
+            if (size == UNSIGNED_INT || compressedSize == UNSIGNED_INT || headerOffset == UNSIGNED_INT) {
+                int extra = pos + 46 + nameLength;
+                int extraEnd = extra + extraLength;
+
+                while (extra + 4 <= extraEnd) {
+                    int id = buffer.getShort(extra) & 0xFFFF;
+                    int length = buffer.getShort(extra + 2) & 0xFFFF;
+
+                    if (id == 0x0001) {
+                        int field = extra + 4;
+
+                        if (size == UNSIGNED_INT) {
+                            size = buffer.getLong(field);
+                            field += 8;
+                        }
+
+                        if (compressedSize == UNSIGNED_INT) {
+                            compressedSize = buffer.getLong(field);
+                            field += 8;
+                        }
+
+                        if (headerOffset == UNSIGNED_INT) {
+                            headerOffset = buffer.getLong(field);
+                        }
+
+                        break;
+                    }
+
+                    extra += 4 + length;
+                }
+            }
+
+            pos += 46 + nameLength + extraLength + commentLength;
+
+            if ((flags & 1) != 0 || (method != STORED && method != DEFLATED)) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Skipping encrypted or unsupported entry '" + name + "' in module archive '" + location + "'.");
+                }
+
+                continue;
+            }
+
+            entryTable.put(name, new Entry(method, checkedOffset(compressedSize), checkedOffset(size), checkedOffset(headerOffset)));
+        }
+
+        return entryTable;
+    }
+
+    /**
+     * Searches the end of central directory record backwards from the end of
+     * the archive, as it may be followed by a comment.
+     */
+    private int findEndHeader() throws IOException {
+        int limit = Math.max(0, buffer.limit() - END_SIZE - 0xFFFF);
+
+        for (int pos = buffer.limit() - END_SIZE; pos >= limit; pos--) {
+            if (buffer.getInt(pos) == END_HEADER)
+                return pos;
+        }
+
+        throw new IOException("Module archive '" + location + "' is not a zip file.");
+    }
+
+    private int checkedOffset(final long value) throws IOException {
+        if (value < 0 || value > buffer.limit())
+            throw new IOException("Invalid offset or size in module archive '" + location + "'.");
+
+        return (int) value;
+    }
+
+    private final class EntryConnection extends URLConnection {
+        private final String name;
+
+        private EntryConnection(final URL url, final String name) {
+            super(url);
+            this.name = name;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (!contains(name))
+                throw new FileNotFoundException(url.toExternalForm());
+
+            connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            return openStream(name);
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            Entry entry = entries.get(name);
+            return entry == null ? -1 : entry.size;
+        }
+
+        @Override
+        public int getContentLength() {
+            long length = getContentLengthLong();
+            return length > Integer.MAX_VALUE ? -1 : (int) length;
+        }
+
+        @Override
+        public long getLastModified() {
+            return file == null ? 0 : file.lastModified();
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        private ByteBufferInputStream(final ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0)
+                return 0;
+
+            if (!buf.hasRemaining())
+                return -1;
+
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buf.remaining()));
+            buf.position(buf.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Class-loader of a packaged module, see {@link ModuleArchive}. Classes and
+ * resources are looked up in the archive's entry table, first in the
+ * 'classes' folder and then in the jars of the 'lib' folder, in the same
+ * order as the class-path of a module directory. Classes are defined
+ * directly from the mapped archive where possible.
+ */
+final class ModuleArchiveClassLoader extends ModuleClassLoaderImpl {
+    static {
+        registerAsParallelCapable();
+    }
+
+    private static final Logger LOG = Logger.getLogger(ModuleArchiveClassLoader.class.getName());
+
+    private static final String CLASSES_FOLDER = "classes/";
+
+    private final ModuleArchive archive;
+
+    /**
+     * The jars of the 'lib' folder, opened as nested archives.
+     */
+    private final ModuleArchive[] libs;
+
+    private final ProtectionDomain protectionDomain;
+
+    private final ProtectionDomain[] libProtectionDomains;
+
+    ModuleArchiveClassLoader(final ModuleImpl module, final ModuleArchive archive) {
+        super(module, new URL[0]);
+
+        this.archive = archive;
+
+        List<ModuleArchive> nestedArchives = new ArrayList<>();
+
+        for (String lib : archive.listFiles("lib/")) {
+            try {
+                nestedArchives.add(archive.openNested(lib));
+            } catch (IOException e) {
+                if (LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "[" + module.toUniqueId() + "] Unable to open '" + lib + "' in module archive '" + archive + "'.", e);
+                }
+            }
+        }
+
+        this.libs = nestedArchives.toArray(new ModuleArchive[nestedArchives.size()]);
+        this.protectionDomain = newProtectionDomain(archive);
+        this.libProtectionDomains = new ProtectionDomain[libs.length];
+
+        for (int i = 0; i < libs.length; i++) {
+            libProtectionDomains[i] = newProtectionDomain(libs[i]);
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(final String name) throws ClassNotFoundException {
+        String path = name.replace('.', '/').concat(".class");
+
+        try {
+            ByteBuffer bytes = archive.read(CLASSES_FOLDER + path);
+            ProtectionDomain domain = protectionDomain;
+
+            for (int i = 0; bytes == null && i < libs.length; i++) {
+                bytes = libs[i].read(path);
+                domain = libProtectionDomains[i];
+            }
+
+            if (bytes == null)
+                throw new ClassNotFoundException(name);
+
+            definePackageOf(name);
+
+            return defineClass(name, bytes, domain);
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    @Override
+    public URL findResource(final String name) {
+        markUsed();
+
+        String resourceName = name.startsWith("/") ? name.substring(1) : name;
+
+        // Same folders as ModuleImpl.locateResource().
+        String entry = resourceName.startsWith("web") ? "web/" + resourceName.substring(Math.min(4, resourceName.length())) : "resources/" + resourceName;
+
+        if (archive.contains(entry))
+            return archive.toURL(entry);
+
+        if (archive.contains(CLASSES_FOLDER + resourceName))
+            return archive.toURL(CLASSES_FOLDER + resourceName);
+
+        for (ModuleArchive lib : libs) {
+            if (lib.contains(resourceName))
+                return lib.toURL(resourceName);
+        }
+
+        return null;
+    }
+
+    @Override
+    public Enumeration<URL> findResources(final String name) throws IOException {
+        String resourceName = name.startsWith("/") ? name.substring(1) : name;
+        List<URL> urls = new ArrayList<>();
+
+        if (archive.contains(CLASSES_FOLDER + resourceName))
+            urls.add(archive.toURL(CLASSES_FOLDER + resourceName));
+
+        for (ModuleArchive lib : libs) {
+            if (lib.contains(resourceName))
+                urls.add(lib.toURL(resourceName));
+        }
+
+        return Collections.enumeration(urls);
+    }
+
+    private ProtectionDomain newProtectionDomain(final ModuleArchive codeArchive) {
+        return new ProtectionDomain(new CodeSource(codeArchive.toURL(""), (Certificate[]) null), null, this, null);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void definePackageOf(final String className) {
+        String packageName = ModuleContentIndex.packageOf(className);
+
+        if (packageName.isEmpty() || getPackage(packageName) != null)
+            return;
+
+        try {
+            definePackage(packageName, null, null, null, null, null, null, null);
+        } catch (IllegalArgumentException e) {
+            // Defined by another thread in the meantime.
+        }
+    }
+}
@@ -27,6 +27,8 @@ import java.net.URLClassLoader;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * ClassLoader responsible for loading classes and resources from modules.
@@ -50,6 +52,15 @@ public class ModuleClassLoaderImpl extends URLClassLoader implements ModuleClass
         }
     }
 
+    /**
+     * If enabled ('geemodule.classloading.lockfree'), no lock is held while
+     * delegating to other class-loaders. Only defining a class from the
+     * module's own class-path is locked, per class-name. This avoids
+     * deadlocks between modules that import from each other and does not pin
+     * virtual threads.
+     */
+    static final boolean LOCK_FREE = Boolean.getBoolean("geemodule.classloading.lockfree");
+
     private static final String[] STANDARD_PACKAGES = new String[] { "java.", "javax.", "sun.", "com.sun.", "oracle.", "com.yourkit." };
 
     private final Module module;
@@ -57,8 +68,20 @@ public class ModuleClassLoaderImpl extends URLClassLoader implements ModuleClass
     private final Map<String, HotSwappableClass> hotSwappableClasses = new HashMap<>();
     private final List<String> nonSwappableClasses = new ArrayList<>();
 
+    /**
+     * Classes that could neither be found in the module, its dependencies nor
+     * the container.
+     */
+    private final NegativeLookupCache missingClasses = new NegativeLookupCache();
+
+    final ConcurrentHashMap<String, ReentrantLock> defineLocks = new ConcurrentHashMap<>();
+
     public ModuleClassLoaderImpl(final Module module) throws MalformedURLException {
-        super(module.getClasspath(), Geemodule.class.getClassLoader());
+        this(module, module.getClasspath());
+    }
+
+    ModuleClassLoaderImpl(final Module module, final URL[] urls) {
+        super(urls, Geemodule.class.getClassLoader());
 
         this.module = module;
 
@@ -79,8 +102,18 @@ public class ModuleClassLoaderImpl extends URLClassLoader implements ModuleClass
         return module;
     }
 
+    /**
+     * Records that the module is in use, see {@link IdleModuleUnloader}.
+     */
+    final void markUsed() {
+        if (IdleModuleUnloader.IDLE_TIMEOUT > 0 && module instanceof ModuleImpl)
+            ((ModuleImpl) module).markUsed();
+    }
+
     @Override
-    public final URL findResource(final String name) {
+    public URL findResource(final String name) {
+        markUsed();
+
         Path resourcePath = module.locateResource(name);
 
         if (resourcePath != null && Files.exists(resourcePath)) {
@@ -95,7 +128,7 @@ public class ModuleClassLoaderImpl extends URLClassLoader implements ModuleClass
     }
 
     @Override
-    public final Enumeration<URL> findResources(final String name) throws IOException {
+    public Enumeration<URL> findResources(final String name) throws IOException {
         return super.findResources(name);
     }
 
@@ -116,103 +149,143 @@ public class ModuleClassLoaderImpl extends URLClassLoader implements ModuleClass
      */
     @Override
     public final Class<?> loadClass(final String name) throws ClassNotFoundException {
-        Class<?> c = null;
-        boolean isStandardClass;
+        if (missingClasses.contains(name, registryEpoch())) {
+            throw new ModuleClassNotFoundException("[" + module.toUniqueId() + "] Class '" + name + "' could not be found.");
+        }
 
-        synchronized (getClassLoadingLock(name)) {
-            c = findLoadedClass(name);
+        Class<?> c = loadClassOrNull(name);
 
-            if (c != null) {
-                return c;
-            }
+        if (c == null) {
+            throw new ClassNotFoundException("[" + module.toUniqueId() + "] Class '" + name + "' could not be found.");
+        }
 
-            isStandardClass = isStandardClass(name);
+        return c;
+    }
 
-            // TODO: Hot swapping.
-            // If the class has already been loaded, just return that
-            // if (isStandardClass || nonSwappableClasses.contains(name))
-            // {
-            // c = findLoadedClass(name);
-            //
-            // if (c != null)
-            // {
-            // return c;
-            // }
-            // }
+    /**
+     * Same as {@link #loadClass(String)}, but returns null instead of throwing
+     * a ClassNotFoundException if the class cannot be found. Used when
+     * delegating between module class-loaders, where a miss is an expected
+     * outcome.
+     */
+    final Class<?> loadClassOrNull(final String name) {
+        markUsed();
 
-            // TODO: Hot swapping.
-            // If hot-swapping is enabled, see if we already have a loaded class
-            // in our map.
-            // HotSwappableClass hsw = hotSwappableClasses.get(name);
-            //
-            // if (hsw != null)
-            // {
-            // return hsw.clazz;
-            // }
+        long epoch = registryEpoch();
 
-            boolean isLocalMode = Boolean.getBoolean("cp.localmode");
+        if (missingClasses.contains(name, epoch)) {
+            return null;
+        }
 
-            // Don't bother dealing with module specific stuff if we are looking
-            // for a standard class
-            if (isStandardClass || isLocalMode) {
-                try {
-                    c = super.loadClass(name);
-                } catch (Throwable t) {
-                }
+        Class<?> c = null;
 
-                return c;
+        if (LOCK_FREE) {
+            c = resolveClass(name);
+        } else {
+            synchronized (getClassLoadingLock(name)) {
+                c = resolveClass(name);
             }
+        }
+
+        if (c == null) {
+            missingClasses.add(name, epoch);
+        }
+
+        // if (!isStandardClass && !hotSwappableClasses.containsKey(name) &&
+        // nonSwappableClasses.contains(name))
+        // nonSwappableClasses.add(name);
+
+        return c;
+    }
+
+    private final Class<?> resolveClass(final String name) {
+        Class<?> c = findLoadedClass(name);
+
+        if (c != null) {
+            return c;
+        }
+
+        boolean isStandardClass = isStandardClass(name);
+
+        // TODO: Hot swapping.
+        // If the class has already been loaded, just return that
+        // if (isStandardClass || nonSwappableClasses.contains(name))
+        // {
+        // c = findLoadedClass(name);
+        //
+        // if (c != null)
+        // {
+        // return c;
+        // }
+        // }
+
+        // TODO: Hot swapping.
+        // If hot-swapping is enabled, see if we already have a loaded class
+        // in our map.
+        // HotSwappableClass hsw = hotSwappableClasses.get(name);
+        //
+        // if (hsw != null)
+        // {
+        // return hsw.clazz;
+        // }
+
+        boolean isLocalMode = Boolean.getBoolean("cp.localmode");
+
+        // Don't bother dealing with module specific stuff if we are looking
+        // for a standard class
+        if (isStandardClass || isLocalMode) {
+            if (LOCK_FREE)
+                return loadParentFirst(name);
 
-            // Now see if we can find the class from the current module
             try {
-                // TODO: Hot swapping.
-                // PackageExport[] packageExports = module.getExportPackages();
-                //
-                // for (PackageExport pe : packageExports)
-                // {
-                // if (name.startsWith(pe.getPrefix()))
-                // {
-                // c = loadSwappableClass(name);
-                // break;
-                // }
-                // }
-
-                if (c == null)
-                    c = findClass(name);
+                c = super.loadClass(name);
             } catch (Throwable t) {
-                // Class not found locally. Try other modules next.
             }
 
-            // If the class is not in the current module, try loading it from a
-            // dependency module
-            if (c == null && !isStandardClass && module.hasDependencies()) {
-                try {
-                    // String loadClassKey = loadClassKey(name);
-                    // Integer loadCount = GeemoduleRegistry.get(loadClassKey);
-                    //
-                    // if (loadCount == null)
-                    // {
-                    // GeemoduleRegistry.put(loadClassKey, Integer.valueOf(1));
-                    // }
-                    // else if (loadCount > 100)
-                    // {
-                    // System.out.println("WARN: The class '" + name +
-                    // "' is being loaded more than a 100 times by the module '"
-                    // + module.getName() + "'.");
-                    // }
-                    // else
-                    // {
-                    // GeemoduleRegistry.put(loadClassKey, loadCount++);
-                    // }
+            return c;
+        }
+
+        // Route the class to its owning source. The content index tells us
+        // whether the class is in the module itself, so findClass() is only
+        // called if it is very likely to succeed.
+        ModuleImpl moduleImpl = module instanceof ModuleImpl ? (ModuleImpl) module : null;
+        ModuleContentIndex contentIndex = moduleImpl == null ? null : moduleImpl.getContentIndex();
+
+        if (contentIndex == null || contentIndex.mightContainClass(name)) {
+            // TODO: Hot swapping.
+            // PackageExport[] packageExports = module.getExportPackages();
+            //
+            // for (PackageExport pe : packageExports)
+            // {
+            // if (name.startsWith(pe.getPrefix()))
+            // {
+            // c = loadSwappableClass(name);
+            // break;
+            // }
+            // }
 
+            c = defineLocalClass(name);
+        }
+
+        // If the class is not in the current module, try loading it from a
+        // dependency module
+        if (c == null && module.hasDependencies()) {
+            if (moduleImpl != null) {
+                c = moduleImpl.findClassInDependency(name);
+            } else {
+                try {
                     c = module.loadClassFromDependency(name);
                 } catch (Throwable t) {
-                    // Class not found in other modules. Try parent ClassLoader
-                    // next.
+                    // Class not found in other modules. Try parent
+                    // ClassLoader next.
                 }
             }
+        }
 
-            if (c == null && module.isImportPackagesFromContainer()) {
+        if (c == null && module.isImportPackagesFromContainer()) {
+            if (moduleImpl != null) {
+                c = moduleImpl.findClassInContainer(name);
+            } else {
                 try {
                     c = module.loadClassFromContainer(name);
                 } catch (Throwable t) {
@@ -222,15 +295,85 @@ public class ModuleClassLoaderImpl extends URLClassLoader implements ModuleClass
             }
         }
 
-        if (c == null) {
-            throw new ClassNotFoundException("[" + module.toUniqueId() + "] Class '" + name + "' could not be found.");
+        return c;
+    }
+
+    /**
+     * Same as ClassLoader.loadClass(), i.e. parent first, but without holding
+     * the class-loading lock while delegating to the parent.
+     */
+    private final Class<?> loadParentFirst(final String name) {
+        ClassLoader parent = getParent();
+
+        if (parent != null) {
+            try {
+                return parent.loadClass(name);
+            } catch (ClassNotFoundException e) {
+                // Not in parent. Try this class-loader next.
+            }
         }
 
-        // if (!isStandardClass && !hotSwappableClasses.containsKey(name) &&
-        // nonSwappableClasses.contains(name))
-        // nonSwappableClasses.add(name);
+        return defineLocalClass(name);
+    }
 
-        return c;
+    /**
+     * Finds and defines the class from this module's own class-path. In
+     * lock-free mode this is the only step that holds a lock, a ReentrantLock
+     * per class-name, so that a class is never defined twice.
+     */
+    private final Class<?> defineLocalClass(final String name) {
+        if (!LOCK_FREE)
+            return findLocalClass(name);
+
+        ReentrantLock lock = defineLocks.get(name);
+
+        if (lock == null) {
+            ReentrantLock newLock = new ReentrantLock();
+            lock = defineLocks.putIfAbsent(name, newLock);
+
+            if (lock == null)
+                lock = newLock;
+        }
+
+        lock.lock();
+
+        try {
+            // Another thread may have defined the class while we were waiting.
+            Class<?> c = findLoadedClass(name);
+
+            return c != null ? c : findLocalClass(name);
+        } finally {
+            lock.unlock();
+
+            // Threads already waiting for the lock will find the defined
+            // class, so the lock is not needed any more.
+            if (!lock.hasQueuedThreads())
+                defineLocks.remove(name, lock);
+        }
+    }
+
+    /**
+     * Finds the class in this module's own class-path. Returns null if it is
+     * not there, which only happens when the content index gave a false
+     * positive.
+     */
+    final Class<?> findLocalClass(final String name) {
+        try {
+            return findClass(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (LinkageError e) {
+            // Possibly defined by another thread in the meantime.
+            return findLoadedClass(name);
+        }
+    }
+
+    /**
+     * Registry epoch of the module-loader, used for invalidating the negative
+     * lookup cache when modules are added or reloaded.
+     */
+    private final long registryEpoch() {
+        return module instanceof ModuleImpl ? ((ModuleImpl) module).getRegistryEpoch() : -1;
     }
 
     private Class<?> loadSwappableClass(String name) throws ClassNotFoundException {
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+
+/**
+ * Compact index of the packages and classes contained in a module's classes
+ * folder and lib jars, including the jars referenced by their manifests. The
+ * package-names are kept as a sorted array, of the class-names only the
+ * hash-codes are kept, also sorted for a binary search. A class whose package
+ * or hash-code is not in the index is definitely not in the module, so there
+ * is no need to search the module's class-path for it.
+ */
+final class ModuleContentIndex {
+    private static final Logger LOG = Logger.getLogger(ModuleContentIndex.class.getName());
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private static final String VERSIONS_PREFIX = "META-INF/versions/";
+
+    private static final String DEFAULT_PACKAGE = "";
+
+    private final String[] packages;
+
+    private final int[] classNameHashes;
+
+    private ModuleContentIndex(final String[] packages, final int[] classNameHashes) {
+        this.packages = packages;
+        this.classNameHashes = classNameHashes;
+    }
+
+    /**
+     * False if the class is definitely not contained in the module.
+     */
+    boolean mightContainClass(final String className) {
+        return Arrays.binarySearch(classNameHashes, className.hashCode()) >= 0 && containsPackage(packageOf(className));
+    }
+
+    /**
+     * True if the module contains at least one class in this package.
+     */
+    boolean containsPackage(final String packageName) {
+        return Arrays.binarySearch(packages, packageName) >= 0;
+    }
+
+    /**
+     * Names of all packages containing classes, sorted.
+     */
+    String[] getPackages() {
+        return packages;
+    }
+
+    /**
+     * Hash-codes of all class-names, sorted. Used for building the
+     * module-loader's global filter.
+     */
+    int[] getClassNameHashes() {
+        return classNameHashes;
+    }
+
+    /**
+     * Indexes the classes folder and the lib jars of a module, including the
+     * jars and folders that the lib jars reference through the 'Class-Path'
+     * attribute of their manifest, as the module's URLClassLoader loads
+     * classes from those too.
+     */
+    static ModuleContentIndex scan(final Path classesDir, final List<URL> jars) {
+        HashCollector hashes = new HashCollector();
+
+        scanDirectory(hashes, classesDir);
+
+        Deque<URL> pending = new ArrayDeque<>(jars);
+        Set<String> visited = new HashSet<>();
+
+        while (!pending.isEmpty()) {
+            URL jar = pending.poll();
+
+            if (!visited.add(jar.toExternalForm()))
+                continue;
+
+            try {
+                File file = new File(jar.toURI());
+
+                if (file.isDirectory()) {
+                    scanDirectory(hashes, file.toPath());
+                    continue;
+                }
+
+                try (JarFile jarFile = new JarFile(file)) {
+                    Enumeration<? extends ZipEntry> entries = jarFile.entries();
+
+                    while (entries.hasMoreElements()) {
+                        String name = entries.nextElement().getName();
+
+                        if (name.endsWith(CLASS_SUFFIX)) {
+                            hashes.add(toClassName(name));
+                        }
+                    }
+
+                    addManifestClassPath(pending, jar, jarFile.getManifest());
+                }
+            } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Unable to index classes in '" + jar + "'.", e);
+                }
+            }
+        }
+
+        return new ModuleContentIndex(hashes.toSortedPackages(), hashes.toSortedArray());
+    }
+
+    private static void scanDirectory(final HashCollector hashes, final Path dir) {
+        if (!Files.isDirectory(dir))
+            return;
+
+        final Path root = dir;
+
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String relativePath = root.relativize(file).toString();
+
+                    if (relativePath.endsWith(CLASS_SUFFIX)) {
+                        hashes.add(toClassName(relativePath.replace(File.separatorChar, '/')));
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            if (LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Unable to index classes in '" + dir + "'.", e);
+            }
+        }
+    }
+
+    /**
+     * Adds the local entries of the manifest's 'Class-Path' attribute, which
+     * are relative to the jar declaring them. Entries that do not exist are
+     * ignored, the same as URLClassLoader does.
+     */
+    private static void addManifestClassPath(final Deque<URL> pending, final URL jar, final Manifest manifest) {
+        if (manifest == null)
+            return;
+
+        String classPath = manifest.getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+
+        if (classPath == null)
+            return;
+
+        for (String entry : classPath.trim().split("\\s+")) {
+            if (entry.isEmpty())
+                continue;
+
+            try {
+                URL url = new URL(jar, entry);
+
+                if ("file".equals(url.getProtocol()) && new File(url.toURI()).exists())
+                    pending.add(url);
+            } catch (MalformedURLException | URISyntaxException | IllegalArgumentException e) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Ignoring Class-Path entry '" + entry + "' of '" + jar + "'.", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Indexes a packaged module from the entry tables of the archive and of
+     * the jars in its 'lib' folder.
+     */
+    static ModuleContentIndex scan(final ModuleArchive archive) {
+        HashCollector hashes = new HashCollector();
+
+        for (String name : archive.list("classes/")) {
+            if (name.endsWith(CLASS_SUFFIX)) {
+                hashes.add(toClassName(name.substring("classes/".length())));
+            }
+        }
+
+        for (String lib : archive.listFiles("lib/")) {
+            try {
+                for (String name : archive.openNested(lib).list("")) {
+                    if (name.endsWith(CLASS_SUFFIX)) {
+                        hashes.add(toClassName(name));
+                    }
+                }
+            } catch (IOException e) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Unable to index classes in '" + lib + "' of '" + archive + "'.", e);
+                }
+            }
+        }
+
+        return new ModuleContentIndex(hashes.toSortedPackages(), hashes.toSortedArray());
+    }
+
+    /**
+     * Converts a class-file path like 'com/a/Example.class' to the binary
+     * class-name 'com.a.Example'.
+     */
+    private static String toClassName(final String path) {
+        String p = path;
+
+        // Multi-release jars keep additional versions of their classes
+        // under META-INF/versions/<version>/.
+        if (p.startsWith(VERSIONS_PREFIX)) {
+            int slash = p.indexOf('/', VERSIONS_PREFIX.length());
+            p = slash == -1 ? p : p.substring(slash + 1);
+        }
+
+        return p.substring(0, p.length() - CLASS_SUFFIX.length()).replace('/', '.');
+    }
+
+    static String packageOf(final String className) {
+        int lastDot = className.lastIndexOf('.');
+        return lastDot == -1 ? DEFAULT_PACKAGE : className.substring(0, lastDot);
+    }
+
+    private static final class HashCollector {
+        private int[] hashes = new int[256];
+        private int size = 0;
+        private final Set<String> packages = new HashSet<>();
+        private String lastPackage = null;
+
+        private void add(final String className) {
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+
+            hashes[size++] = className.hashCode();
+
+            // Entries of the same package usually come one after the other.
+            String packageName = packageOf(className);
+
+            if (!packageName.equals(lastPackage)) {
+                packages.add(packageName);
+                lastPackage = packageName;
+            }
+        }
+
+        private String[] toSortedPackages() {
+            String[] sorted = packages.toArray(new String[packages.size()]);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private int[] toSortedArray() {
+            int[] sorted = Arrays.copyOf(hashes, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
@@ -19,6 +19,10 @@ package com.geemodule;
 import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Annotation;
+import java.lang.annotation.Inherited;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Path;
@@ -27,19 +31,26 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.osgi.framework.Version;
 import org.osgi.framework.VersionRange;
-import org.reflections.Reflections;
-import org.reflections.scanners.SubTypesScanner;
-import org.reflections.scanners.TypeAnnotationsScanner;
-import org.reflections.util.ConfigurationBuilder;
 
 import com.geemodule.annotation.Bootstrapable;
 import com.geemodule.api.Module;
@@ -47,6 +58,7 @@ import com.geemodule.api.ModuleBootstrap;
 import com.geemodule.api.ModuleLoader;
 import com.geemodule.api.PackageExport;
 import com.geemodule.api.PackageImport;
+import com.geemodule.api.TypeDescriptor;
 import com.geemodule.util.Strings;
 
 /**
@@ -61,6 +73,16 @@ public class ModuleImpl implements Module {
 
     private final Version version;
 
+    /**
+     * Identity of the module, fixed at construction as it is used for every
+     * cache lookup and comparison.
+     */
+    private final String uniqueId;
+
+    private final String code;
+
+    private final int hash;
+
     private final PackageImport[] importPackages;
 
     private final PackageExport[] exportPackages;
@@ -73,7 +95,42 @@ public class ModuleImpl implements Module {
 
     private final String basePath;
 
-    private final ClassLoader moduleClassLoader;
+    /**
+     * Set if the module is packaged as a single jar or zip file, see
+     * {@link ModuleArchive}. Null for module directories.
+     */
+    private final ModuleArchive archive;
+
+    /**
+     * Created by {@link #activate()}, see {@link #LAZY_ACTIVATION}. Null
+     * while the module is not activated.
+     */
+    private volatile ClassLoader moduleClassLoader = null;
+
+    private final Object activationLock = new Object();
+
+    /**
+     * Counted down once the startup that followed the last activation has
+     * finished. Null if the activation did not start the module.
+     */
+    private volatile CountDownLatch startupDone = null;
+
+    /**
+     * Last time the module was used, i.e. its class-loader was asked for or a
+     * class or resource was looked up in it. Only kept up to date if idle
+     * modules are unloaded.
+     */
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /**
+     * The class-loader dropped by {@link #unload(long, ReferenceQueue)}.
+     */
+    private volatile Reference<? extends ClassLoader> unloadedClassLoader = null;
+
+    /**
+     * Set once the @Bootstrapable classes have been started.
+     */
+    private final AtomicBoolean started = new AtomicBoolean();
 
     private final String classesDir = "classes";
 
@@ -83,20 +140,83 @@ public class ModuleImpl implements Module {
 
     private final String webDir = "web";
 
-    private Collection<Module> dependencies = null;
+    private volatile ModuleWiring wiring = null;
 
     private final ModuleLoader moduleLoader;
 
-    private Reflections reflections = null;
+    /**
+     * Index of the type annotations and supertypes of the module's public
+     * classes. Built on first use.
+     */
+    private volatile TypeIndex typeIndex = null;
+
+    /**
+     * Query results, each computed only once per key, see
+     * {@link #computeOnce(ConcurrentMap, String, Callable)}.
+     */
+    private final ConcurrentMap<String, FutureTask<Class<?>[]>> annotatedTypesCache = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, FutureTask<Class<?>[]>> subTypesCache = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, FutureTask<TypeDescriptor[]>> typeDescriptorsCache = new ConcurrentHashMap<>();
 
-    private final Map<String, Class<?>[]> annotatedTypesCache = new HashMap<>();
+    private volatile List<URL> jars;
+
+    private volatile ModuleContentIndex contentIndex = null;
+
+    /**
+     * Bootstraps whose startup() has completed, in start order.
+     */
+    private final List<ModuleBootstrap> startedBootstraps = new CopyOnWriteArrayList<>();
+
+    /**
+     * Names of annotated types taken over from a previous bootstrap, keyed
+     * like the annotatedTypesCache.
+     */
+    private final Map<String, String[]> knownAnnotatedTypes;
 
     private static final String CSV_DELIMITER = ";";
 
+    /**
+     * If enabled ('geemodule.typeindex.persist'), the type index is stored in
+     * the module directory and only re-built when the module has changed.
+     */
+    private static final boolean PERSIST_TYPE_INDEX = Boolean.getBoolean("geemodule.typeindex.persist");
+
+    /**
+     * If enabled ('geemodule.activation.lazy'), modules are only registered
+     * from their module.properties during bootstrap. The lib folder is listed
+     * and the class-loader and content index are created when the module is
+     * first used, i.e. when a class or resource is loaded from it. Its
+     * bootstraps are started at that point too. As the content index of
+     * modules that have not been used is unknown, the module-loader's global
+     * class-name filter is not available in this mode.
+     */
+    static final boolean LAZY_ACTIVATION = Boolean.getBoolean("geemodule.activation.lazy");
+
     private static final Logger LOG = Logger.getLogger(ModuleImpl.class.getName());
 
-    @SuppressWarnings("unchecked")
     public ModuleImpl(final String modulePath, final Properties moduleConfig, final ModuleLoader moduleLoader) throws MalformedURLException {
+        this(modulePath, moduleConfig, moduleLoader, null, null);
+    }
+
+    /**
+     * Creates the module with data remembered from a previous bootstrap. If
+     * jars is null the lib folder is scanned (on first use in lazy activation
+     * mode) and if knownAnnotatedTypes is null annotated types are looked up
+     * as usual.
+     */
+    ModuleImpl(final String modulePath, final Properties moduleConfig, final ModuleLoader moduleLoader, final List<URL> jars, final Map<String, String[]> knownAnnotatedTypes)
+        throws MalformedURLException {
+        this(modulePath, moduleConfig, moduleLoader, jars, knownAnnotatedTypes, null);
+    }
+
+    /**
+     * Creates a packaged module if archive is not null. modulePath is the
+     * path of the archive file then.
+     */
+    ModuleImpl(final String modulePath, final Properties moduleConfig, final ModuleLoader moduleLoader, final List<URL> jars, final Map<String, String[]> knownAnnotatedTypes,
+        final ModuleArchive archive) throws MalformedURLException {
         if (moduleConfig == null || moduleConfig.isEmpty()) {
             throw new ModuleException("Unable to initialize module because module configuration is null or empty.");
         }
@@ -105,6 +225,11 @@ public class ModuleImpl implements Module {
 
         // Remember path to module
         this.basePath = modulePath;
+        this.archive = archive;
+
+        this.jars = jars == null && !LAZY_ACTIVATION ? findJars() : jars;
+
+        this.knownAnnotatedTypes = knownAnnotatedTypes == null ? Collections.<String, String[]> emptyMap() : knownAnnotatedTypes;
 
         // Set properties from module.properties
         this.vendor = moduleConfig.getProperty("module.vendor");
@@ -118,11 +243,15 @@ public class ModuleImpl implements Module {
             throw new ModuleException("Module '" + basePath + "' could not be loaded because property 'module.name' is missing in the module definition file module.properties");
 
         if (moduleConfig.getProperty("module.version") != null && !"".equals(moduleConfig.getProperty("module.version"))) {
-            this.version = new Version(moduleConfig.getProperty("module.version").trim());
+            this.version = Versions.parseVersion(moduleConfig.getProperty("module.version").trim());
         } else {
             throw new ModuleException("Module '" + basePath + "' could not be loaded because property 'module.version' is missing in the module definition file module.properties");
         }
 
+        this.uniqueId = new StringBuilder(vendor).append(".").append(name).append("@version=").append(version).toString().replace(' ', '-');
+        this.code = Strings.slugify(name);
+        this.hash = uniqueId.hashCode();
+
         this.isActive = Boolean.valueOf(moduleConfig.getProperty("module.active", "false"));
 
         this.description = moduleConfig.getProperty("module.description");
@@ -180,51 +309,237 @@ public class ModuleImpl implements Module {
             this.exportPackages = null;
         }
 
-        // try
-        // {
+        if (!LAZY_ACTIVATION)
+            createClassLoader();
+
+        if (!this.isActive && LOG.isLoggable(Level.FINER)) {
+            LOG.finer("Module '" + toUniqueId() + "' was found and appears to be conform, but it will not be loaded as it has not been activated (module.active=true).");
+        }
+    }
+
+    private final ClassLoader createClassLoader() {
         // If we are in local-mode we need to use the local ClassLoader.
         boolean isLocalMode = Boolean.getBoolean("cp.localmode");
 
         if (isLocalMode) {
+            this.contentIndex = null;
             this.moduleClassLoader = this.getClass().getClassLoader();
         } else {
-            this.moduleClassLoader = new ModuleClassLoaderImpl(this);
-        }
-        // }
-        // catch (MalformedURLException e)
-        // {
-        // LOG.throwing("ModuleImpl", "ModuleImpl", e);
-        // }
+            // The class-loader uses the content index, so it is set first.
+            this.contentIndex = archive != null ? ModuleContentIndex.scan(archive) : ModuleContentIndex.scan(getClassesDir(), getJars());
 
-        if (!this.isActive && LOG.isLoggable(Level.FINER)) {
-            LOG.finer("Module '" + toUniqueId() + "' was found and appears to be conform, but it will not be loaded as it has not been activated (module.active=true).");
+            // Re-use the class-loader of an unloaded module if it is still
+            // alive, so that its classes are not defined a second time.
+            Reference<? extends ClassLoader> unloaded = unloadedClassLoader;
+            ClassLoader previousClassLoader = unloaded == null ? null : unloaded.get();
+            unloadedClassLoader = null;
+
+            if (previousClassLoader != null) {
+                // Still started, as its bootstraps have not been shut down.
+                unloaded.clear();
+
+                if (moduleLoader instanceof ModuleLoaderImpl) {
+                    ((ModuleLoaderImpl) moduleLoader).classLoaderRevived(unloaded);
+                }
+
+                this.moduleClassLoader = previousClassLoader;
+            } else {
+                // The classes of the bootstraps are defined anew, so the module
+                // has to be started again.
+                started.set(false);
+
+                try {
+                    this.moduleClassLoader = archive != null ? new ModuleArchiveClassLoader(this, archive) : new ModuleClassLoaderImpl(this);
+                } catch (MalformedURLException e) {
+                    throw new ModuleException("[" + toUniqueId() + "] Unable to create module class-loader.", e);
+                }
+            }
         }
 
-        if (this.isActive) {
-            Class<ModuleBootstrap>[] bootstrapClasses = (Class<ModuleBootstrap>[]) this.findTypesAnnotatedWith(Bootstrapable.class, false);
+        this.lastUsed = System.currentTimeMillis();
 
-            // System.out.println("Module '" + toUniqueId() + ":: " +
-            // Arrays.asList(bootstrapClasses) + " -> " +
-            // this.getClass().getClassLoader());
+        return this.moduleClassLoader;
+    }
 
-            if (bootstrapClasses != null && bootstrapClasses.length > 0) {
-                for (Class<ModuleBootstrap> bootstrap : bootstrapClasses) {
-                    try {
-                        if (LOG.isLoggable(Level.FINER)) {
-                            LOG.finer("Starting module bootstrap class: " + bootstrap.getName());
-                        }
-                        // System.out.println("Starting module bootstrap class:
-                        // " + bootstrap);
+    /**
+     * Creates the class-loader and content index if that has not happened
+     * yet. In lazy activation mode, or after the module has been unloaded,
+     * this is called on first use and the module-loader is then told to
+     * start the module. Returns once the module has been started, see
+     * {@link #awaitStartup()}.
+     */
+    final ClassLoader activate() {
+        ClassLoader cl = moduleClassLoader;
+        CountDownLatch latch = null;
 
-                        bootstrap.newInstance().startup();
-                    } catch (InstantiationException e) {
-                        e.printStackTrace();
-                    } catch (IllegalAccessException e) {
-                        e.printStackTrace();
+        if (cl == null) {
+            synchronized (activationLock) {
+                cl = moduleClassLoader;
+
+                if (cl == null) {
+                    long start = System.currentTimeMillis();
+
+                    // Published before the class-loader, so that every thread
+                    // seeing the class-loader also sees the pending startup.
+                    if (moduleLoader instanceof ModuleLoaderImpl && ((ModuleLoaderImpl) moduleLoader).startsOnActivation()) {
+                        latch = new CountDownLatch(1);
+                    }
+
+                    startupDone = latch;
+                    cl = createClassLoader();
+
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("[" + toUniqueId() + "] Activated module in " + (System.currentTimeMillis() - start) + "ms.");
                     }
                 }
             }
         }
+
+        if (latch != null) {
+            ((ModuleLoaderImpl) moduleLoader).moduleActivated(this, latch);
+        }
+
+        awaitStartup();
+
+        return cl;
+    }
+
+    /**
+     * Waits until the startup that followed the activation of the module has
+     * finished, so that the module is not used half started. Threads that
+     * run module startups do not wait, see
+     * {@link ModuleLoaderImpl#awaitStartup(ModuleImpl, CountDownLatch)}.
+     */
+    private final void awaitStartup() {
+        CountDownLatch latch = startupDone;
+
+        if (latch != null && latch.getCount() > 0) {
+            ((ModuleLoaderImpl) moduleLoader).awaitStartup(this, latch);
+        }
+    }
+
+    /**
+     * Drops the class-loader, the content index and the cached query results
+     * if the module has not been used since the given time. Returns a weak
+     * reference to the dropped class-loader, registered with the queue, or
+     * null if nothing was unloaded. See {@link IdleModuleUnloader}.
+     *
+     * A module with running bootstraps is never unloaded: the bootstraps
+     * reference the class-loader, so it could not be collected anyway, and
+     * they may be serving requests without going through the module.
+     */
+    final Reference<? extends ClassLoader> unload(final long unusedSince, final ReferenceQueue<ClassLoader> queue) {
+        synchronized (activationLock) {
+            ClassLoader cl = moduleClassLoader;
+            CountDownLatch latch = startupDone;
+
+            if (!(cl instanceof ModuleClassLoaderImpl) || lastUsed > unusedSince || !startedBootstraps.isEmpty() || (latch != null && latch.getCount() > 0))
+                return null;
+
+            annotatedTypesCache.clear();
+            subTypesCache.clear();
+            typeDescriptorsCache.clear();
+
+            moduleClassLoader = null;
+            contentIndex = null;
+
+            Reference<ClassLoader> classLoaderRef = new WeakReference<>(cl, queue);
+            unloadedClassLoader = classLoaderRef;
+
+            return classLoaderRef;
+        }
+    }
+
+    final long getLastUsed() {
+        return lastUsed;
+    }
+
+    final boolean isActivated() {
+        return moduleClassLoader != null;
+    }
+
+    /**
+     * Instantiates the @Bootstrapable classes of the module and calls their
+     * startup() method. The module-loader calls this once the dependencies
+     * have been resolved, after all modules that this one depends on have
+     * been started. A bootstrap that fails is logged and does not prevent the
+     * others from starting.
+     */
+    @SuppressWarnings("unchecked")
+    final void startup() {
+        if (!this.isActive || !started.compareAndSet(false, true))
+            return;
+
+        Class<ModuleBootstrap>[] bootstrapClasses = (Class<ModuleBootstrap>[]) this.findTypesAnnotatedWith(Bootstrapable.class, false);
+
+        if (bootstrapClasses == null || bootstrapClasses.length == 0)
+            return;
+
+        for (Class<ModuleBootstrap> bootstrapClass : bootstrapClasses) {
+            if (LOG.isLoggable(Level.FINER)) {
+                LOG.finer("[" + toUniqueId() + "] Starting module bootstrap class: " + bootstrapClass.getName());
+            }
+
+            long start = System.currentTimeMillis();
+
+            try {
+                ModuleBootstrap bootstrap = bootstrapClass.newInstance();
+                bootstrap.startup();
+                startedBootstraps.add(bootstrap);
+            } catch (InstantiationException | IllegalAccessException | RuntimeException e) {
+                if (LOG.isLoggable(Level.SEVERE)) {
+                    LOG.log(Level.SEVERE, "[" + toUniqueId() + "] Module bootstrap '" + bootstrapClass.getName() + "' failed to start.", e);
+                }
+            }
+
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("[" + toUniqueId() + "] Started module bootstrap '" + bootstrapClass.getName() + "' in " + (System.currentTimeMillis() - start) + "ms.");
+            }
+        }
+    }
+
+    /**
+     * Calls shutdown() on the started bootstraps in reverse order and closes
+     * the module's class-loader.
+     */
+    final void shutdown() {
+        shutdownBootstraps();
+
+        if (moduleClassLoader instanceof ModuleClassLoaderImpl) {
+            try {
+                ((ModuleClassLoaderImpl) moduleClassLoader).close();
+            } catch (IOException e) {
+                if (LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "[" + toUniqueId() + "] Unable to close module class-loader.", e);
+                }
+            }
+        }
+
+        if (archive != null) {
+            try {
+                archive.close();
+            } catch (IOException e) {
+                if (LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "[" + toUniqueId() + "] Unable to close module archive.", e);
+                }
+            }
+        }
+    }
+
+    private final void shutdownBootstraps() {
+        List<ModuleBootstrap> bootstraps = new ArrayList<>(startedBootstraps);
+        Collections.reverse(bootstraps);
+        startedBootstraps.clear();
+
+        for (ModuleBootstrap bootstrap : bootstraps) {
+            try {
+                bootstrap.shutdown();
+            } catch (RuntimeException e) {
+                if (LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "[" + toUniqueId() + "] Module bootstrap '" + bootstrap.getClass().getName() + "' failed to shut down.", e);
+                }
+            }
+        }
     }
 
     /**
@@ -232,7 +547,7 @@ public class ModuleImpl implements Module {
      */
     @Override
     public final Class<?> loadClass(final String name) throws ClassNotFoundException {
-        return this.moduleClassLoader.loadClass(name);
+        return getModuleClassLoader().loadClass(name);
     }
 
     /**
@@ -246,7 +561,11 @@ public class ModuleImpl implements Module {
             PackageImport packageImport = findPackageImport(name);
 
             if (packageImport != null) {
-                c = moduleLoader.lookup(name, dependencies, packageImport, getName());
+                c = findClassInDependency(name);
+
+                if (c == null) {
+                    throw new ClassNotFoundException("[" + toUniqueId() + "] Class '" + name + "' could not be found in any module dependency.");
+                }
 
                 if (LOG.isLoggable(Level.FINER)) {
                     LOG.finer("[" + toUniqueId() + "] Class '" + name + "' found in module dependency class-loader " + c.getClassLoader());
@@ -257,6 +576,42 @@ public class ModuleImpl implements Module {
         return c;
     }
 
+    /**
+     * Same as {@link #loadClassFromDependency(String)}, but returns null
+     * instead of throwing a ClassNotFoundException. The exporting module is
+     * taken from the wiring, so this is a map lookup once a class of the same
+     * package has been loaded.
+     */
+    final Class<?> findClassInDependency(final String name) {
+        ModuleWiring w = this.wiring;
+
+        if (w == null)
+            return null;
+
+        Module m = w.findExportingModule(name, getName());
+
+        return m == null ? null : ModuleLoaderImpl.loadClassOrNull(m, name);
+    }
+
+    /**
+     * The registry epoch of the module-loader that this module belongs to.
+     */
+    final long getRegistryEpoch() {
+        return moduleLoader instanceof ModuleLoaderImpl ? ((ModuleLoaderImpl) moduleLoader).getRegistryEpoch() : 0;
+    }
+
+    /**
+     * Index of the classes in this module or null if running in local-mode or
+     * if the module has not been activated yet.
+     */
+    final ModuleContentIndex getContentIndex() {
+        return contentIndex;
+    }
+
+    final PackageImport[] getContainerImportPackages() {
+        return importContainerPackages;
+    }
+
     /**
      * Attempts to load a class from the container class-loader.
      */
@@ -281,6 +636,23 @@ public class ModuleImpl implements Module {
         return c;
     }
 
+    /**
+     * Same as {@link #loadClassFromContainer(String)}, but returns null
+     * instead of throwing a ClassNotFoundException. The container
+     * class-loader is only asked if the class matches one of the
+     * container-package-imports.
+     */
+    final Class<?> findClassInContainer(final String name) {
+        if (!importPackagesFromContainer || findContainerPackageImport(name) == null)
+            return null;
+
+        try {
+            return Geemodule.class.getClassLoader().loadClass(name);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
     /**
      * Finds the best matching package-import definition which would have been
      * specified under this modules' module.properties.
@@ -344,6 +716,7 @@ public class ModuleImpl implements Module {
             return false;
 
         boolean hasMatchingExportPackage = false;
+        Versions.Range range = Versions.range(versionRange);
 
         for (PackageExport packageExport : exportPackages) {
             if (packageExport.getPrefix().startsWith(packagePrefix)) {
@@ -351,7 +724,8 @@ public class ModuleImpl implements Module {
                     LOG.finest("[" + toUniqueId() + "] Package match found. Now checking import-version '" + versionRange + "' against exported version '" + packageExport.getVersion() + "'");
                 }
 
-                if (versionRange.includes(packageExport.getVersion())) {
+                if (packageExport instanceof PackageExportImpl ? range.includes(packageExport.getVersion(), ((PackageExportImpl) packageExport).getVersionKey())
+                    : range.includes(packageExport.getVersion())) {
                     hasMatchingExportPackage = true;
 
                     if (LOG.isLoggable(Level.FINEST)) {
@@ -405,22 +779,31 @@ public class ModuleImpl implements Module {
      */
     @Override
     public final String toUniqueId() {
-        StringBuffer id = new StringBuffer();
-        id.append(vendor);
-        id.append(".").append(name);
-        id.append("@version=").append(version);
-
-        return id.toString().replace(' ', '-');
+        return uniqueId;
     }
 
     @Override
     public Collection<Module> getDependencies() {
-        return this.dependencies;
+        ModuleWiring w = this.wiring;
+        return w == null ? null : w.getDependencies();
     }
 
     @Override
     public boolean hasDependencies() {
-        return this.dependencies != null && this.dependencies.size() > 0;
+        ModuleWiring w = this.wiring;
+        return w != null && w.getDependencies().size() > 0;
+    }
+
+    /**
+     * Sets the result of resolving this module's package-imports. Called by
+     * the module-loader once all modules are known.
+     */
+    final void setWiring(final ModuleWiring wiring) {
+        this.wiring = wiring;
+    }
+
+    final ModuleWiring getWiring() {
+        return wiring;
     }
 
     /**
@@ -430,8 +813,8 @@ public class ModuleImpl implements Module {
     @Override
     public final URL[] getClasspath() throws MalformedURLException {
         List<URL> urls = new ArrayList<URL>();
-        urls.add(new File(basePath, classesDir).toURI().toURL());
-        urls.addAll(findJars());
+        urls.add(archive != null ? archive.toURL(classesDir + "/") : new File(basePath, classesDir).toURI().toURL());
+        urls.addAll(getJars());
 
         return urls.toArray(new URL[urls.size()]);
     }
@@ -445,7 +828,16 @@ public class ModuleImpl implements Module {
                 try {
                     String packageExportResource = toResource(packageExport.getPrefix());
 
-                    Enumeration<URL> resourceUrls = moduleClassLoader.getResources(packageExportResource);
+                    if (archive != null) {
+                        String folder = classesDir + "/" + packageExportResource + "/";
+
+                        if (!archive.list(folder).isEmpty())
+                            urls.add(archive.toURL(folder));
+
+                        continue;
+                    }
+
+                    Enumeration<URL> resourceUrls = getModuleClassLoader().getResources(packageExportResource);
 
                     File classesPath = new File(basePath, classesDir);
 
@@ -498,48 +890,249 @@ public class ModuleImpl implements Module {
 
     @Override
     public final Class<?>[] findTypesAnnotatedWith(final Class<? extends Annotation> annotation, final boolean honorInherited) {
+        final String cacheKey = new StringBuilder(annotation.getName()).append("_").append(String.valueOf(honorInherited)).toString();
+
+        return computeOnce(annotatedTypesCache, cacheKey, new Callable<Class<?>[]>() {
+            public Class<?>[] call() {
+                Set<Class<?>> types = knownAnnotatedTypes.containsKey(cacheKey) ? loadClasses(knownAnnotatedTypes.get(cacheKey))
+                    : loadIndexedTypes(getTypeIndex().findTypesAnnotatedWith(annotation.getName(), annotation.isAnnotationPresent(Inherited.class), honorInherited));
+
+                return types.toArray(new Class[types.size()]);
+            }
+        });
+    }
+
+    @Override
+    public final TypeDescriptor[] findTypeDescriptorsAnnotatedWith(final Class<? extends Annotation> annotation, final boolean honorInherited) {
         String cacheKey = new StringBuilder(annotation.getName()).append("_").append(String.valueOf(honorInherited)).toString();
 
-        Class<?>[] annotatedTypes = null;
+        TypeDescriptor[] descriptors = computeOnce(typeDescriptorsCache, cacheKey, new Callable<TypeDescriptor[]>() {
+            public TypeDescriptor[] call() {
+                TypeIndex index = getTypeIndex();
+                Set<String> names = index.findTypesAnnotatedWith(annotation.getName(), annotation.isAnnotationPresent(Inherited.class), honorInherited);
+
+                TypeDescriptor[] typeDescriptors = new TypeDescriptor[names.size()];
+                int i = 0;
+
+                for (String name : names) {
+                    typeDescriptors[i++] = index.describe(name, ModuleImpl.this);
+                }
+
+                return typeDescriptors;
+            }
+        });
+
+        return descriptors.clone();
+    }
+
+    @Override
+    public final Class<?>[] findSubTypesOf(final Class<?> type) {
+        return findSubTypes(type, false);
+    }
+
+    @Override
+    public final Class<?>[] findImplementationsOf(final Class<?> type) {
+        return findSubTypes(type, true);
+    }
+
+    private final Class<?>[] findSubTypes(final Class<?> type, final boolean concreteOnly) {
+        String cacheKey = new StringBuilder(type.getName()).append("_").append(concreteOnly ? "impl" : "sub").toString();
+
+        return computeOnce(subTypesCache, cacheKey, new Callable<Class<?>[]>() {
+            public Class<?>[] call() {
+                Set<String> names = findSubTypeNames(type.getName(), new HashSet<Module>());
+
+                if (concreteOnly) {
+                    TypeIndex index = getTypeIndex();
+
+                    for (Iterator<String> it = names.iterator(); it.hasNext();) {
+                        if (!index.isConcrete(it.next()))
+                            it.remove();
+                    }
+                }
+
+                Set<Class<?>> types = loadIndexedTypes(names);
+                return types.toArray(new Class[types.size()]);
+            }
+        });
+    }
+
+    /**
+     * Runs the computation only once per key. Concurrent callers asking for
+     * the same key wait for the running computation and share its result. If
+     * the computation fails, the key is removed again so that the next call
+     * can retry.
+     */
+    private static <T> T computeOnce(final ConcurrentMap<String, FutureTask<T>> cache, final String key, final Callable<T> computation) {
+        FutureTask<T> task = cache.get(key);
 
-        // read.lock();
+        if (task == null) {
+            FutureTask<T> newTask = new FutureTask<>(computation);
+            task = cache.putIfAbsent(key, newTask);
+
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
 
         try {
-            annotatedTypes = annotatedTypesCache.get(cacheKey);
-        } finally {
-            // read.unlock();
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModuleException(e);
+        } catch (ExecutionException e) {
+            cache.remove(key, task);
+
+            Throwable cause = e.getCause();
+            throw cause instanceof ModuleException ? (ModuleException) cause : new ModuleException(cause);
         }
+    }
 
-        if (annotatedTypes != null) {
-            return annotatedTypes;
-        } else {
-            Set<Class<?>> types = getReflections().getTypesAnnotatedWith(annotation, honorInherited);
+    /**
+     * Names of the types in this module that are sub-types of the type. The
+     * type hierarchy may pass through the dependencies, e.g. a class in this
+     * module extending an abstract class of a dependency that implements the
+     * type, so their sub-types are taken into account as well.
+     */
+    final Set<String> findSubTypeNames(final String typeName, final Set<Module> visited) {
+        visited.add(this);
 
-            if (types != null) {
-                annotatedTypes = types.toArray(new Class[types.size()]);
+        Set<String> superTypes = new HashSet<>();
+        superTypes.add(typeName);
 
-                // write.lock();
+        Collection<Module> dependencies = getDependencies();
 
-                try {
-                    annotatedTypesCache.put(cacheKey, annotatedTypes);
-                } finally {
-                    // write.unlock();
+        if (dependencies != null) {
+            for (Module dependency : dependencies) {
+                if (dependency instanceof ModuleImpl && !visited.contains(dependency)) {
+                    superTypes.addAll(((ModuleImpl) dependency).findSubTypeNames(typeName, visited));
                 }
             }
+        }
+
+        return getTypeIndex().findSubTypesOf(superTypes);
+    }
+
+    private final Set<Class<?>> loadClasses(final String[] classNames) {
+        Set<Class<?>> classes = new LinkedHashSet<>();
+
+        for (String className : classNames) {
+            try {
+                classes.add(loadClass(className));
+            } catch (ClassNotFoundException e) {
+                throw new ModuleException("[" + toUniqueId() + "] Class '" + className + "' from the bootstrap snapshot could not be loaded.", e);
+            }
+        }
+
+        return classes;
+    }
+
+    /**
+     * Loads the types found in the type index. Types that cannot be loaded,
+     * e.g. because of a missing dependency, are skipped.
+     */
+    private final Set<Class<?>> loadIndexedTypes(final Set<String> classNames) {
+        Set<Class<?>> classes = new LinkedHashSet<>();
+
+        for (String className : classNames) {
+            try {
+                classes.add(loadClass(className));
+            } catch (ClassNotFoundException | LinkageError e) {
+                if (LOG.isLoggable(Level.WARNING)) {
+                    LOG.warning("[" + toUniqueId() + "] Unable to load indexed type '" + className + "': " + e.getMessage());
+                }
+            }
+        }
+
+        return classes;
+    }
+
+    /**
+     * Names of the annotated types found so far, used for writing the
+     * bootstrap snapshot.
+     */
+    final Map<String, String[]> getAnnotatedTypeNames() {
+        Map<String, String[]> annotatedTypeNames = new HashMap<>();
+
+        for (Map.Entry<String, FutureTask<Class<?>[]>> entry : annotatedTypesCache.entrySet()) {
+            Class<?>[] annotatedTypes;
+
+            // Queries that are still running or have failed are left out.
+            try {
+                if (!entry.getValue().isDone())
+                    continue;
+
+                annotatedTypes = entry.getValue().get();
+            } catch (InterruptedException | ExecutionException e) {
+                continue;
+            }
+
+            String[] classNames = new String[annotatedTypes.length];
+
+            for (int i = 0; i < classNames.length; i++) {
+                classNames[i] = annotatedTypes[i].getName();
+            }
 
-            return annotatedTypes;
+            annotatedTypeNames.put(entry.getKey(), classNames);
         }
+
+        return annotatedTypeNames;
     }
 
-    private final Reflections getReflections() {
-        if (reflections == null) {
-            ConfigurationBuilder cb = new ConfigurationBuilder();
-            cb.addUrls(getPublicClasspath()).addClassLoader(getModuleClassLoader()).setScanners(new TypeAnnotationsScanner(), new SubTypesScanner());
+    /**
+     * The archive of a packaged module, null for a module directory.
+     */
+    final ModuleArchive getArchive() {
+        return archive;
+    }
 
-            this.reflections = new Reflections(cb);
+    /**
+     * The jars in the lib folder. Listed on first use in lazy activation
+     * mode.
+     */
+    final List<URL> getJars() {
+        List<URL> libJars = jars;
+
+        if (libJars == null) {
+            synchronized (activationLock) {
+                libJars = jars;
+
+                if (libJars == null) {
+                    libJars = findJars();
+                    jars = libJars;
+                }
+            }
         }
 
-        return this.reflections;
+        return libJars;
+    }
+
+    private final TypeIndex getTypeIndex() {
+        TypeIndex index = typeIndex;
+
+        if (index == null) {
+            synchronized (this) {
+                index = typeIndex;
+
+                if (index == null) {
+                    long start = System.currentTimeMillis();
+
+                    // Packaged modules are read from memory and cannot
+                    // store an index file.
+                    index = archive != null ? TypeIndex.scan(archive, exportPackages)
+                        : PERSIST_TYPE_INDEX ? TypeIndex.loadOrScan(new File(basePath), getClassesDir(), getJars(), exportPackages)
+                        : TypeIndex.scan(getClassesDir(), getJars(), exportPackages);
+                    typeIndex = index;
+
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("[" + toUniqueId() + "] Indexed types in " + (System.currentTimeMillis() - start) + "ms.");
+                    }
+                }
+            }
+        }
+
+        return index;
     }
 
     /**
@@ -548,6 +1141,14 @@ public class ModuleImpl implements Module {
     private final List<URL> findJars() {
         List<URL> libUrls = new ArrayList<URL>();
 
+        if (archive != null) {
+            for (String lib : archive.listFiles(libDir + "/")) {
+                libUrls.add(archive.toURL(lib));
+            }
+
+            return libUrls;
+        }
+
         File f = new File(basePath, libDir);
 
         if (f.exists()) {
@@ -584,7 +1185,7 @@ public class ModuleImpl implements Module {
 
     @Override
     public final String getCode() {
-        return Strings.slugify(name).toLowerCase();
+        return code;
     }
 
     @Override
@@ -619,27 +1220,44 @@ public class ModuleImpl implements Module {
 
     @Override
     public final ClassLoader getModuleClassLoader() {
-        return moduleClassLoader;
+        ClassLoader cl = moduleClassLoader;
+
+        if (cl == null)
+            cl = activate();
+        else
+            awaitStartup();
+
+        markUsed();
+
+        return cl;
+    }
+
+    /**
+     * Records that the module is in use, see {@link IdleModuleUnloader}.
+     */
+    final void markUsed() {
+        if (IdleModuleUnloader.IDLE_TIMEOUT > 0)
+            lastUsed = System.currentTimeMillis();
     }
 
     @Override
     public final Path getClassesDir() {
-        return new File(basePath, classesDir).toPath();
+        return archive != null ? archive.getFileSystem().getPath("/", classesDir) : new File(basePath, classesDir).toPath();
     }
 
     @Override
     public Path getLibDir() {
-        return new File(basePath, libDir).toPath();
+        return archive != null ? archive.getFileSystem().getPath("/", libDir) : new File(basePath, libDir).toPath();
     }
 
     @Override
     public Path getResourcesDir() {
-        return new File(basePath, resourcesDir).toPath();
+        return archive != null ? archive.getFileSystem().getPath("/", resourcesDir) : new File(basePath, resourcesDir).toPath();
     }
 
     @Override
     public Path getWebDir() {
-        return new File(basePath, webDir).toPath();
+        return archive != null ? archive.getFileSystem().getPath("/", webDir) : new File(basePath, webDir).toPath();
     }
 
     @Override
@@ -665,10 +1283,20 @@ public class ModuleImpl implements Module {
 
     @Override
     public final boolean equals(Object obj) {
-        if (obj != null && obj instanceof Module) {
-            return this.toUniqueId().equals(((Module) obj).toUniqueId());
+        if (obj == this) {
+            return true;
+        } else if (obj instanceof ModuleImpl) {
+            ModuleImpl other = (ModuleImpl) obj;
+            return hash == other.hash && uniqueId.equals(other.uniqueId);
+        } else if (obj instanceof Module) {
+            return uniqueId.equals(((Module) obj).toUniqueId());
         } else {
             return false;
         }
     }
+
+    @Override
+    public final int hashCode() {
+        return hash;
+    }
 }
@@ -17,109 +17,1025 @@
 package com.geemodule;
 
 import com.geemodule.api.*;
-import org.osgi.framework.VersionRange;
 
 import java.io.*;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class ModuleLoaderImpl implements ModuleLoader {
     private static final Logger LOG = Logger.getLogger(ModuleLoaderImpl.class.getName());
 
+    /**
+     * When set to true, module directories are scanned and modules are
+     * constructed concurrently during bootstrap.
+     */
+    private static final String PARALLEL_BOOTSTRAP_KEY = "geemodule.bootstrap.parallel";
+
+    private static final String BOOTSTRAP_THREADS_KEY = "geemodule.bootstrap.threads";
+
+    /**
+     * When set to true, the bootstrap state is written to a snapshot file in
+     * the modules root directory and re-used on the next bootstrap for all
+     * modules that have not changed.
+     */
+    private static final String BOOTSTRAP_SNAPSHOT_KEY = "geemodule.bootstrap.snapshot";
+
+    /**
+     * Number of threads used for starting independent modules concurrently.
+     * Defaults to the number of available processors, 1 starts the modules
+     * one after the other.
+     */
+    private static final String STARTUP_THREADS_KEY = "geemodule.startup.threads";
+
+    /**
+     * Maximum time in milliseconds that a module's bootstraps may take to
+     * start. Modules that have not started by then are logged and no longer
+     * waited for. 0, the default, waits indefinitely.
+     */
+    private static final String STARTUP_TIMEOUT_KEY = "geemodule.startup.timeout";
+
     private ModuleCache moduleCache = new ModuleCacheImpl();
 
     /**
-     * Initializes all modules and resolves their dependencies.
+     * The module set with its export-index, class-name filter and public
+     * packages, available once all modules have been initialized and their
+     * dependencies resolved. Replaced as a whole whenever the module set
+     * changes.
+     */
+    private volatile RegistrySnapshot registry = null;
+
+    /**
+     * Incremented whenever the set of modules changes. Cached lookup results
+     * from an older epoch are no longer valid.
+     */
+    private final AtomicLong registryEpoch = new AtomicLong();
+
+    private final ResolutionCache resolutionCache = new ResolutionCache();
+
+    private final NegativeLookupCache missingClasses = new NegativeLookupCache();
+
+    /**
+     * Shared PublicClassLoader instances per configuration (prefix entries
+     * and fallback class-loader). Both the instances and the caller's
+     * class-loaders in the key are only weakly held, so that neither are kept
+     * alive by the module-loader once the caller has dropped them.
+     */
+    private final ConcurrentHashMap<PublicClassLoaderKey, PublicClassLoaderReference> publicClassLoaders = new ConcurrentHashMap<>();
+
+    private final ReferenceQueue<PublicClassLoader> collectedPublicClassLoaders = new ReferenceQueue<>();
+
+    /**
+     * Public resources of all modules. Built on first use and re-built once
+     * the registry epoch has changed.
+     */
+    private volatile ResourceIndex resourceIndex = null;
+
+    private final Object resourceIndexLock = new Object();
+
+    /**
+     * Modules whose bootstraps have been started, in start order.
+     */
+    private final CopyOnWriteArrayList<Module> startedModules = new CopyOnWriteArrayList<>();
+
+    /**
+     * Modules whose startup failed, timed out or was skipped. Modules that
+     * depend on one of them are not started.
+     */
+    private final Set<Module> failedModules = Collections.newSetFromMap(new ConcurrentHashMap<Module, Boolean>());
+
+    /**
+     * Runs the startup of modules activated after the startup phase. Created
+     * on first use.
+     */
+    private volatile ExecutorService activationExecutor = null;
+
+    /**
+     * Set on threads running module startups, which must not wait for other
+     * startups to finish.
+     */
+    private static final ThreadLocal<Boolean> STARTUP_THREAD = new ThreadLocal<>();
+
+    /**
+     * Set when the bootstrap reaches the startup phase and cleared on
+     * shutdown. Modules that are activated lazily in between are started on
+     * activation.
+     */
+    private volatile boolean modulesStarting = false;
+
+    /**
+     * Unloads idle modules if 'geemodule.unload.idle' is set.
+     */
+    private volatile IdleModuleUnloader idleModuleUnloader = null;
+
+    /**
+     * Initializes all modules and resolves their dependencies.
+     */
+    @Override
+    public final ModuleLoader bootstrap(final String modulesRootDir) {
+        return bootstrap(modulesRootDir, null);
+    }
+
+    @Override
+    public final CompletableFuture<ModuleLoader> bootstrapAsync(final String modulesRootDir) {
+        return bootstrapAsync(modulesRootDir, null);
+    }
+
+    /**
+     * Runs {@link #bootstrap(String)} on a new daemon thread, so that the
+     * caller can continue with other work. The listener is told about each
+     * completed phase.
+     */
+    @Override
+    public final CompletableFuture<ModuleLoader> bootstrapAsync(final String modulesRootDir, final BootstrapListener listener) {
+        final CompletableFuture<ModuleLoader> future = new CompletableFuture<>();
+
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    future.complete(bootstrap(modulesRootDir, listener));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }
+        }, "geemodule-bootstrap-async");
+
+        t.setDaemon(true);
+        t.start();
+
+        return future;
+    }
+
+    private final ModuleLoader bootstrap(final String modulesRootDir, final BootstrapListener listener) {
+        File rootDir = new File(modulesRootDir);
+
+        // Check that root modules dir exists
+        if (!rootDir.exists()) {
+            if (LOG.isLoggable(Level.WARNING)) {
+                LOG.warning("Modules root dir '" + rootDir.getAbsolutePath() + "' found. Skipping.");
+            }
+
+            return this;
+        }
+
+        // Get all sub-module-directories
+        File[] moduleDirs = rootDir.listFiles();
+
+        // No sub directories (modules) exist
+        if (moduleDirs == null || moduleDirs.length == 0) {
+            if (LOG.isLoggable(Level.INFO)) {
+                LOG.info("No modules found in root dir '" + rootDir.getAbsolutePath() + "'.");
+            }
+
+            return this;
+        } else {
+            // Process the directories in a fixed order so that the module
+            // which ends up in the cache does not depend on the file-system or
+            // on which thread finishes first.
+            Arrays.sort(moduleDirs);
+
+            ExecutorService executor = Boolean.getBoolean(PARALLEL_BOOTSTRAP_KEY) ? newBootstrapExecutor() : null;
+
+            // Data remembered from the previous bootstrap, if enabled.
+            boolean useSnapshot = Boolean.getBoolean(BOOTSTRAP_SNAPSHOT_KEY);
+            BootstrapSnapshot snapshot = useSnapshot ? BootstrapSnapshot.load(rootDir) : null;
+
+            ScannedModule[] scannedModules;
+
+            try {
+                long startScanning = System.currentTimeMillis();
+
+                // Go through all the directories and attempt to load the
+                // module.properties
+                scannedModules = scanModuleConfigs(moduleDirs, snapshot, executor);
+
+                long endScanning = System.currentTimeMillis();
+
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Completed module scanning in " + (endScanning - startScanning) + "ms. " + moduleDirs.length + " directories scanned.");
+                }
+
+                phaseCompleted(listener, BootstrapPhase.SCAN, endScanning - startScanning);
+
+                // Initialize modules with module path and configuration.
+                constructModules(scannedModules, useSnapshot, executor);
+
+                // Only add to modules list if it is active. The first module
+                // in directory order wins should there be duplicates.
+                for (ScannedModule scannedModule : scannedModules) {
+                    Module m = scannedModule.module;
+
+                    if (m != null && m.isActive()) {
+                        Module cachedModule = cache().putIfAbsent(m.toUniqueId(), m);
+
+                        if (cachedModule != null && LOG.isLoggable(Level.WARNING)) {
+                            LOG.warning("Module '" + m.getBasePath() + "' ignored because module '" + cachedModule.toUniqueId() + "' has already been loaded from '" + cachedModule.getBasePath()
+                                + "'.");
+                        }
+                    }
+                }
+
+                for (Module module : cache().getAll()) {
+                    if (LOG.isLoggable(Level.FINER)) {
+                        LOG.finer("Initialization of " + module.toUniqueId() + " complete.");
+                    }
+                }
+
+                long endConstructing = System.currentTimeMillis();
+
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.fine("Completed module construction in " + (endConstructing - endScanning) + "ms. " + cache().size() + " modules found.");
+                }
+
+                phaseCompleted(listener, BootstrapPhase.CONSTRUCT, endConstructing - endScanning);
+            } finally {
+                if (executor != null) {
+                    executor.shutdown();
+                }
+            }
+
+            // Now we attempt to resolve all module dependencies
+
+            long startResolving = System.currentTimeMillis();
+
+            boolean dependenciesReused = snapshot != null && reuseDependencies(scannedModules, snapshot);
+
+            if (!dependenciesReused) {
+                resolveDependencies();
+            }
+
+            // The module set is complete now.
+            moduleSetChanged();
+
+            long endResolving = System.currentTimeMillis();
+
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Completed module dependency resolving in " + (endResolving - startResolving) + "ms." + (dependenciesReused ? " Dependencies taken from bootstrap snapshot." : ""));
+            }
+
+            phaseCompleted(listener, BootstrapPhase.RESOLVE, endResolving - startResolving);
+
+            // Dependencies are available now, so the modules can be started.
+            startModules();
+
+            long endStartup = System.currentTimeMillis();
+
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Completed module startup in " + (endStartup - endResolving) + "ms.");
+            }
+
+            phaseCompleted(listener, BootstrapPhase.START, endStartup - endResolving);
+
+            if (IdleModuleUnloader.IDLE_TIMEOUT > 0 && idleModuleUnloader == null) {
+                idleModuleUnloader = IdleModuleUnloader.start(this);
+            }
+
+            if (useSnapshot && !(dependenciesReused && isSnapshotCurrent(scannedModules))) {
+                writeSnapshot(rootDir, scannedModules);
+            }
+        }
+
+        return this;
+    }
+
+    /**
+     * Notifies the listener, if any. A failing listener does not stop the
+     * bootstrap.
+     */
+    private static void phaseCompleted(final BootstrapListener listener, final BootstrapPhase phase, final long durationMillis) {
+        if (listener == null)
+            return;
+
+        try {
+            listener.phaseCompleted(phase, durationMillis);
+        } catch (RuntimeException e) {
+            if (LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Bootstrap listener failed on phase " + phase + ".", e);
+            }
+        }
+    }
+
+    /**
+     * State of a module directory while it is being bootstrapped.
+     */
+    private static final class ScannedModule {
+        private final File dir;
+        private Properties config;
+        private BootstrapSnapshot.Entry snapshotEntry;
+        private boolean configCurrent;
+        private boolean contentCurrent;
+        private long contentFingerprint;
+        private ModuleArchive archive;
+        private Module module;
+
+        private ScannedModule(final File dir) {
+            this.dir = dir;
+        }
+    }
+
+    /**
+     * Loads the module.properties of every module directory. The returned
+     * array has the same order as the directories passed in. Directories
+     * without a valid configuration have no config set.
+     */
+    private final ScannedModule[] scanModuleConfigs(final File[] moduleDirs, final BootstrapSnapshot snapshot, final ExecutorService executor) {
+        List<Callable<ScannedModule>> tasks = new ArrayList<>();
+
+        for (final File moduleDir : moduleDirs) {
+            tasks.add(new Callable<ScannedModule>() {
+                public ScannedModule call() {
+                    if (LOG.isLoggable(Level.FINER)) {
+                        LOG.finer("Scanning directory '" + moduleDir + "'.");
+                    }
+
+                    ScannedModule scannedModule = new ScannedModule(moduleDir);
+
+                    // The snapshot file itself is not a module.
+                    if (moduleDir.getName().startsWith(BootstrapSnapshot.FILE_NAME))
+                        return scannedModule;
+
+                    scannedModule.snapshotEntry = snapshot == null ? null : snapshot.get(moduleDir.getAbsolutePath());
+
+                    // Re-use the configuration from the previous bootstrap if
+                    // the module.properties has not changed.
+                    if (scannedModule.snapshotEntry != null && scannedModule.snapshotEntry.isConfigCurrent(moduleDir)) {
+                        scannedModule.config = scannedModule.snapshotEntry.config;
+                        scannedModule.configCurrent = true;
+                    } else {
+                        // Attempt to load module configuration file
+                        // (module.properties)
+                        scannedModule.config = ModuleArchive.isArchive(moduleDir) ? getArchiveConfig(scannedModule) : getModuleConfig(moduleDir);
+                    }
+
+                    return scannedModule;
+                }
+            });
+        }
+
+        return runAll(tasks, executor).toArray(new ScannedModule[moduleDirs.length]);
+    }
+
+    /**
+     * Creates a module for every directory that has a configuration. Modules
+     * that fail to initialize are logged and have no module set.
+     */
+    private final void constructModules(final ScannedModule[] scannedModules, final boolean useSnapshot, final ExecutorService executor) {
+        List<Callable<Module>> tasks = new ArrayList<>();
+
+        for (final ScannedModule scannedModule : scannedModules) {
+            tasks.add(new Callable<Module>() {
+                public Module call() {
+                    if (scannedModule.config == null)
+                        return null;
+
+                    if (LOG.isLoggable(Level.FINER)) {
+                        LOG.finer("Attempting to load module '" + scannedModule.dir + "'.");
+                    }
+
+                    try {
+                        List<URL> jars = null;
+                        Map<String, String[]> knownAnnotatedTypes = null;
+
+                        BootstrapSnapshot.Entry entry = scannedModule.snapshotEntry;
+                        boolean packaged = ModuleArchive.isArchive(scannedModule.dir);
+
+                        // The lib jars of a packaged module are listed from
+                        // its entry table and not remembered.
+                        if (entry != null && entry.isLibCurrent(scannedModule.dir)) {
+                            jars = packaged ? null : toURLs(entry.jars);
+                            scannedModule.contentFingerprint = BootstrapSnapshot.contentFingerprint(scannedModule.dir, entry.jars);
+
+                            if (scannedModule.configCurrent && scannedModule.contentFingerprint == entry.contentFingerprint) {
+                                knownAnnotatedTypes = entry.annotatedTypes;
+                                scannedModule.contentCurrent = true;
+                            }
+                        }
+
+                        // Not opened yet if the configuration came from the
+                        // snapshot.
+                        ModuleArchive archive = scannedModule.archive;
+
+                        if (packaged && archive == null)
+                            archive = ModuleArchive.open(scannedModule.dir);
+
+                        ModuleImpl module = new ModuleImpl(scannedModule.dir.getAbsolutePath(), scannedModule.config, ModuleLoaderImpl.this, jars, knownAnnotatedTypes, archive);
+
+                        if (useSnapshot && jars == null) {
+                            scannedModule.contentFingerprint = BootstrapSnapshot.contentFingerprint(scannedModule.dir, packaged ? null : toPaths(module.getJars()));
+                        }
+
+                        scannedModule.module = module;
+
+                        return module;
+                    } catch (Throwable t) {
+                        LOG.throwing(ModuleImpl.class.getName(), "constructor", t);
+                        return null;
+                    }
+                }
+            });
+        }
+
+        runAll(tasks, executor);
+    }
+
+    /**
+     * Takes over the dependencies from the bootstrap snapshot. This is only
+     * possible if no module has been added, removed or re-configured since
+     * the snapshot was written.
+     */
+    private final boolean reuseDependencies(final ScannedModule[] scannedModules, final BootstrapSnapshot snapshot) {
+        int numConfigured = 0;
+
+        for (ScannedModule scannedModule : scannedModules) {
+            if (scannedModule.config == null)
+                continue;
+
+            if (!scannedModule.configCurrent)
+                return false;
+
+            numConfigured++;
+        }
+
+        if (numConfigured != snapshot.entries().size())
+            return false;
+
+        Map<Module, List<Module>> dependencies = new HashMap<>();
+
+        for (ScannedModule scannedModule : scannedModules) {
+            Module module = scannedModule.module;
+
+            if (module == null || cache().get(module.toUniqueId()) != module || module.getImportPackages() == null)
+                continue;
+
+            String[] dependencyIds = scannedModule.snapshotEntry.dependencies;
+
+            if (dependencyIds == null)
+                return false;
+
+            List<Module> moduleDependencies = new ArrayList<>();
+
+            for (String dependencyId : dependencyIds) {
+                Module dependency = cache().get(dependencyId);
+
+                if (dependency == null)
+                    return false;
+
+                moduleDependencies.add(dependency);
+            }
+
+            dependencies.put(module, moduleDependencies);
+        }
+
+        for (Map.Entry<Module, List<Module>> entry : dependencies.entrySet()) {
+            setWiring(entry.getKey(), ModuleWiring.of(entry.getKey(), entry.getValue()));
+        }
+
+        return true;
+    }
+
+    private final boolean isSnapshotCurrent(final ScannedModule[] scannedModules) {
+        for (ScannedModule scannedModule : scannedModules) {
+            if (scannedModule.config != null && !scannedModule.contentCurrent)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Remembers the configuration, jars, annotated types and dependencies of
+     * all modules for the next bootstrap.
+     */
+    private final void writeSnapshot(final File rootDir, final ScannedModule[] scannedModules) {
+        Map<String, BootstrapSnapshot.Entry> entries = new LinkedHashMap<>();
+
+        for (ScannedModule scannedModule : scannedModules) {
+            if (scannedModule.config == null)
+                continue;
+
+            File propertiesFile = BootstrapSnapshot.propertiesFile(scannedModule.dir);
+            ModuleImpl module = (ModuleImpl) scannedModule.module;
+
+            String[] jars = module == null || module.getArchive() != null ? null : toPaths(module.getJars());
+            Map<String, String[]> annotatedTypes = module == null ? Collections.<String, String[]> emptyMap() : module.getAnnotatedTypeNames();
+            String uniqueId = module == null ? null : module.toUniqueId();
+            String[] dependencies = null;
+
+            // Only the modules that made it into the cache have dependencies.
+            if (module != null && cache().get(uniqueId) == module) {
+                Collection<Module> moduleDependencies = module.getDependencies();
+                dependencies = new String[moduleDependencies == null ? 0 : moduleDependencies.size()];
+
+                int i = 0;
+                if (moduleDependencies != null) {
+                    for (Module dependency : moduleDependencies) {
+                        dependencies[i++] = dependency.toUniqueId();
+                    }
+                }
+            }
+
+            String path = scannedModule.dir.getAbsolutePath();
+
+            entries.put(path, new BootstrapSnapshot.Entry(path, propertiesFile.lastModified(), propertiesFile.length(), scannedModule.config, BootstrapSnapshot.libModified(scannedModule.dir),
+                jars, scannedModule.contentFingerprint, annotatedTypes, uniqueId, dependencies));
+        }
+
+        new BootstrapSnapshot(entries).write(rootDir);
+    }
+
+    private static final List<URL> toURLs(final String[] paths) throws MalformedURLException {
+        List<URL> urls = new ArrayList<>();
+
+        if (paths != null) {
+            for (String path : paths) {
+                urls.add(new File(path).toURI().toURL());
+            }
+        }
+
+        return urls;
+    }
+
+    static final String[] toPaths(final List<URL> urls) {
+        String[] paths = new String[urls.size()];
+
+        for (int i = 0; i < paths.length; i++) {
+            try {
+                paths[i] = new File(urls.get(i).toURI()).getAbsolutePath();
+            } catch (URISyntaxException e) {
+                throw new ModuleException(e);
+            }
+        }
+
+        return paths;
+    }
+
+    /**
+     * Runs the tasks in the calling thread if no executor has been passed,
+     * otherwise in the executor. Results are returned in task order.
+     */
+    private final <T> List<T> runAll(final List<Callable<T>> tasks, final ExecutorService executor) {
+        List<T> results = new ArrayList<>(tasks.size());
+
+        try {
+            if (executor == null) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+            } else {
+                for (Future<T> future : executor.invokeAll(tasks)) {
+                    results.add(future.get());
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof ModuleException ? (ModuleException) cause : new ModuleException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModuleException(e);
+        } catch (ModuleException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new ModuleException(e);
+        }
+
+        return results;
+    }
+
+    /**
+     * Creates the thread-pool used for scanning and constructing modules in
+     * parallel. The pool size can be configured with the system property
+     * 'geemodule.bootstrap.threads' and defaults to the number of available
+     * processors.
+     */
+    private final ExecutorService newBootstrapExecutor() {
+        return newExecutor("geemodule-bootstrap-", Integer.getInteger(BOOTSTRAP_THREADS_KEY, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private static ExecutorService newExecutor(final String threadNamePrefix, final int threads) {
+        return Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, threadNamePrefix + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Starts the bootstraps of all modules in dependency order: a module is
+     * only started once the modules it depends on have been started, while
+     * modules on the same level of the dependency graph start concurrently.
+     * The pool size is configured with 'geemodule.startup.threads' and the
+     * timeout with 'geemodule.startup.timeout'.
+     *
+     * The timeout only stops waiting: a startup that takes longer is
+     * interrupted but may keep running. Such a module, and one whose startup
+     * failed, is treated as not started, so the modules depending on it are
+     * skipped. A module is only added to the started modules once its
+     * startup has actually returned, so that shutdown does not run
+     * concurrently with it. If the loader has been shut down in the
+     * meantime, the module is shut down right away.
+     */
+    private final void startModules() {
+        modulesStarting = true;
+
+        List<List<Module>> levels = startupLevels(cache().getAll());
+
+        if (levels.isEmpty())
+            return;
+
+        long timeout = Long.getLong(STARTUP_TIMEOUT_KEY, 0);
+        ExecutorService executor = newExecutor("geemodule-startup-", Integer.getInteger(STARTUP_THREADS_KEY, Runtime.getRuntime().availableProcessors()));
+
+        try {
+            for (List<Module> level : levels) {
+                List<Module> startable = new ArrayList<>(level.size());
+                List<Callable<Module>> tasks = new ArrayList<>(level.size());
+
+                for (final Module module : level) {
+                    Module failedDependency = failedDependency(module);
+
+                    if (failedDependency != null) {
+                        failedModules.add(module);
+
+                        if (LOG.isLoggable(Level.SEVERE)) {
+                            LOG.severe("Not starting module '" + module.toUniqueId() + "' because its dependency '" + failedDependency.toUniqueId() + "' has not been started.");
+                        }
+
+                        continue;
+                    }
+
+                    startable.add(module);
+                    tasks.add(new Callable<Module>() {
+                        public Module call() {
+                            STARTUP_THREAD.set(Boolean.TRUE);
+
+                            try {
+                                ((ModuleImpl) module).startup();
+                            } finally {
+                                STARTUP_THREAD.remove();
+
+                                // Also remembers modules that failed or took too
+                                // long, so that the bootstraps they did start
+                                // are shut down again.
+                                if (modulesStarting)
+                                    startedModules.addIfAbsent(module);
+                                else
+                                    ((ModuleImpl) module).shutdown();
+                            }
+
+                            return module;
+                        }
+                    });
+                }
+
+                List<Future<Module>> futures = timeout > 0 ? executor.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS) : executor.invokeAll(tasks);
+
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        futures.get(i).get();
+                    } catch (CancellationException e) {
+                        failedModules.add(startable.get(i));
+
+                        if (LOG.isLoggable(Level.SEVERE)) {
+                            LOG.severe("Startup of module '" + startable.get(i).toUniqueId() + "' did not complete within " + timeout + "ms.");
+                        }
+                    } catch (ExecutionException e) {
+                        failedModules.add(startable.get(i));
+
+                        if (LOG.isLoggable(Level.SEVERE)) {
+                            LOG.log(Level.SEVERE, "Startup of module '" + startable.get(i).toUniqueId() + "' failed.", e.getCause());
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ModuleException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the first dependency of the module whose startup failed, timed
+     * out or was skipped, or null if there is none.
+     */
+    private final Module failedDependency(final Module module) {
+        if (failedModules.isEmpty())
+            return null;
+
+        Collection<Module> dependencies = module.getDependencies();
+
+        if (dependencies != null) {
+            for (Module dependency : dependencies) {
+                if (failedModules.contains(dependency))
+                    return dependency;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * True if modules activated from now on have to be started, i.e. they are
+     * activated lazily or revived after the startup phase. Modules activated
+     * before that are started by {@link #startModules()}.
+     */
+    final boolean startsOnActivation() {
+        return modulesStarting;
+    }
+
+    /**
+     * Starts a module that has been activated lazily, after activating, and
+     * thereby starting, the modules it depends on, and then counts the latch
+     * down. The startup runs on a thread of the activation pool rather than
+     * on the thread that first used the module, as that thread may hold
+     * class-loading locks or be a pool task itself. Modules activated by a
+     * startup are started on the same thread.
+     */
+    final void moduleActivated(final ModuleImpl module, final CountDownLatch startupDone) {
+        Runnable startup = new Runnable() {
+            public void run() {
+                Boolean wasStartupThread = STARTUP_THREAD.get();
+                STARTUP_THREAD.set(Boolean.TRUE);
+
+                try {
+                    startActivatedModule(module);
+                } catch (RuntimeException | Error e) {
+                    if (LOG.isLoggable(Level.SEVERE)) {
+                        LOG.log(Level.SEVERE, "Startup of module '" + module.toUniqueId() + "' failed.", e);
+                    }
+                } finally {
+                    if (wasStartupThread == null)
+                        STARTUP_THREAD.remove();
+
+                    startupDone.countDown();
+                }
+            }
+        };
+
+        if (STARTUP_THREAD.get() == Boolean.TRUE) {
+            startup.run();
+        } else {
+            activationExecutor().execute(startup);
+        }
+    }
+
+    /**
+     * Waits until the startup of the module has finished, at most for
+     * 'geemodule.startup.timeout' if that is set. Threads running a startup
+     * do not wait, as the module being started, or one depending on it, may
+     * be used by its own bootstraps.
+     */
+    final void awaitStartup(final ModuleImpl module, final CountDownLatch startupDone) {
+        if (STARTUP_THREAD.get() == Boolean.TRUE)
+            return;
+
+        final long timeout = Long.getLong(STARTUP_TIMEOUT_KEY, 0);
+
+        try {
+            // Lets a waiting fork-join task be compensated by another worker.
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                public boolean block() throws InterruptedException {
+                    if (timeout > 0)
+                        startupDone.await(timeout, TimeUnit.MILLISECONDS);
+                    else
+                        startupDone.await();
+
+                    return true;
+                }
+
+                public boolean isReleasable() {
+                    return startupDone.getCount() == 0;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (startupDone.getCount() > 0 && LOG.isLoggable(Level.WARNING)) {
+            LOG.warning("Using module '" + module.toUniqueId() + "' while its startup is still running.");
+        }
+    }
+
+    private final ExecutorService activationExecutor() {
+        ExecutorService executor = activationExecutor;
+
+        if (executor == null) {
+            synchronized (this) {
+                executor = activationExecutor;
+
+                if (executor == null) {
+                    executor = newExecutor("geemodule-activation-", Integer.getInteger(STARTUP_THREADS_KEY, Runtime.getRuntime().availableProcessors()));
+                    activationExecutor = executor;
+                }
+            }
+        }
+
+        return executor;
+    }
+
+    private final void startActivatedModule(final ModuleImpl module) {
+        Collection<Module> dependencies = module.getDependencies();
+
+        if (dependencies != null) {
+            for (Module dependency : dependencies) {
+                if (dependency instanceof ModuleImpl)
+                    ((ModuleImpl) dependency).activate();
+            }
+        }
+
+        Module failedDependency = failedDependency(module);
+
+        if (failedDependency != null) {
+            if (LOG.isLoggable(Level.SEVERE)) {
+                LOG.severe("Not starting module '" + module.toUniqueId() + "' because its dependency '" + failedDependency.toUniqueId() + "' has not been started.");
+            }
+
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        module.startup();
+        startedModules.addIfAbsent(module);
+
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.fine("Started lazily activated module " + module.toUniqueId() + " in " + (System.currentTimeMillis() - start) + "ms.");
+        }
+    }
+
+    /**
+     * Called after idle modules have been unloaded. Moving on to the next
+     * registry epoch drops cached lookup results, which may reference
+     * classes of the unloaded modules.
      */
-    @Override
-    public final ModuleLoader bootstrap(final String modulesRootDir) {
-        File rootDir = new File(modulesRootDir);
+    final void modulesUnloaded() {
+        RegistrySnapshot r = registry;
 
-        // Check that root modules dir exists
-        if (!rootDir.exists()) {
-            if (LOG.isLoggable(Level.WARNING)) {
-                LOG.warning("Modules root dir '" + rootDir.getAbsolutePath() + "' found. Skipping.");
-            }
+        if (r != null)
+            registry = r.withoutClassLoaders();
 
-            return this;
+        registryEpoch.incrementAndGet();
+        resolutionCache.clear();
+        publicClassLoaders.clear();
+    }
+
+    final void classLoaderRevived(final Reference<? extends ClassLoader> classLoaderRef) {
+        IdleModuleUnloader unloader = idleModuleUnloader;
+
+        if (unloader != null)
+            unloader.revived(classLoaderRef);
+    }
+
+    /**
+     * Groups the activated modules by their depth in the dependency graph,
+     * keeping the module order within each level: modules without
+     * dependencies first, then the modules that only depend on those and so
+     * on. A dependency cycle is broken at the module where it is detected.
+     */
+    static final List<List<Module>> startupLevels(final Collection<Module> modules) {
+        Set<Module> startable = new LinkedHashSet<>();
+
+        for (Module module : modules) {
+            if (module instanceof ModuleImpl && module.isActive() && ((ModuleImpl) module).isActivated())
+                startable.add(module);
         }
 
-        // Get all sub-module-directories
-        File[] moduleDirs = rootDir.listFiles();
+        Map<Module, Integer> depths = new HashMap<>();
+        Set<Module> visiting = new HashSet<>();
+        List<List<Module>> levels = new ArrayList<>();
 
-        // No sub directories (modules) exist
-        if (moduleDirs.length == 0) {
-            if (LOG.isLoggable(Level.INFO)) {
-                LOG.info("No modules found in root dir '" + rootDir.getAbsolutePath() + "'.");
+        for (Module module : startable) {
+            int depth = depth(module, startable, depths, visiting);
+
+            while (levels.size() <= depth) {
+                levels.add(new ArrayList<Module>());
             }
 
-            return this;
-        } else {
-            long startScanning = System.currentTimeMillis();
+            levels.get(depth).add(module);
+        }
 
-            // Go through all the directories and attempt to load the
-            // module.properties
-            for (File moduleDir : moduleDirs) {
-                if (LOG.isLoggable(Level.FINER)) {
-                    LOG.finer("Scanning directory '" + moduleDir + "'.");
-                }
+        return levels;
+    }
 
-                // Attempt to load module configuration file (module.properties)
-                Properties moduleConfig = getModuleConfig(moduleDir);
+    private static int depth(final Module module, final Set<Module> modules, final Map<Module, Integer> depths, final Set<Module> visiting) {
+        Integer depth = depths.get(module);
 
-                if (moduleConfig != null) {
-                    if (LOG.isLoggable(Level.FINER)) {
-                        LOG.finer("Attempting to load module '" + moduleDir + "'.");
-                    }
+        if (depth != null)
+            return depth;
 
-                    // Initialize module with module path and configuration.
-                    Module m;
-                    try {
-                        m = new ModuleImpl(moduleDir.getAbsolutePath(), moduleConfig, this);
+        if (!visiting.add(module)) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Dependency cycle detected at module '" + module.toUniqueId() + "'. Start order within the cycle is undefined.");
+            }
 
-                        // Only add to modules list if it is active.
-                        if (m.isActive()) {
-                            Module cachedModule = cache().putIfAbsent(m.toUniqueId(), m);
+            return -1;
+        }
 
-                            if (cachedModule != null)
-                                m = cachedModule;
-                        }
-                    } catch (Throwable t) {
-                        LOG.throwing(ModuleImpl.class.getName(), "constructor", t);
-                    }
-                }
-            }
+        int d = 0;
+        Collection<Module> dependencies = module.getDependencies();
 
-            for (Module module : cache().getAll()) {
-                if (LOG.isLoggable(Level.FINER)) {
-                    LOG.finer("Initialization of " + module.toUniqueId() + " complete.");
-                }
+        if (dependencies != null) {
+            for (Module dependency : dependencies) {
+                if (dependency != module && modules.contains(dependency))
+                    d = Math.max(d, depth(dependency, modules, depths, visiting) + 1);
             }
+        }
 
-            long endScanning = System.currentTimeMillis();
+        visiting.remove(module);
+        depths.put(module, d);
 
-            if (LOG.isLoggable(Level.FINE)) {
-                LOG.fine("Completed module scanning in " + (endScanning - startScanning) + "ms. " + cache().size() + " modules found.");
-            }
+        return d;
+    }
 
-            // Now we attempt to resolve all module dependencies
+    /**
+     * Shuts the modules down in the reverse order in which they were started
+     * and closes their class-loaders.
+     */
+    @Override
+    public final void shutdown() {
+        IdleModuleUnloader unloader = idleModuleUnloader;
 
-            long startResolving = System.currentTimeMillis();
+        if (unloader != null) {
+            unloader.stop();
+            idleModuleUnloader = null;
+        }
 
-            resolveDependencies();
+        modulesStarting = false;
 
-            long endResolving = System.currentTimeMillis();
+        ExecutorService executor = activationExecutor;
 
-            if (LOG.isLoggable(Level.FINE)) {
-                LOG.fine("Completed module dependency resolving in " + (endResolving - startResolving) + "ms.");
+        if (executor != null) {
+            executor.shutdown();
+            activationExecutor = null;
+        }
+
+        List<Module> modules = new ArrayList<>(startedModules);
+        startedModules.clear();
+        failedModules.clear();
+        Collections.reverse(modules);
+
+        for (Module module : modules) {
+            if (LOG.isLoggable(Level.FINER)) {
+                LOG.finer("Shutting down module " + module.toUniqueId() + ".");
             }
+
+            ((ModuleImpl) module).shutdown();
         }
 
-        return this;
+        publicClassLoaders.clear();
+        resolutionCache.clear();
+    }
+
+    /**
+     * Must be called whenever modules have been added, removed or reloaded.
+     * Publishes a new registry snapshot and invalidates all cached lookup
+     * results by moving on to the next registry epoch.
+     */
+    protected final void moduleSetChanged() {
+        registry = RegistrySnapshot.build(cache().getAll());
+        registryEpoch.incrementAndGet();
+        resolutionCache.clear();
+        missingClasses.clear();
+        publicClassLoaders.clear();
+        resourceIndex = null;
+    }
+
+    public final long getRegistryEpoch() {
+        return registryEpoch.get();
+    }
+
+    /**
+     * The cache of located modules, mainly for monitoring its hit-rate.
+     */
+    public final ResolutionCache getResolutionCache() {
+        return resolutionCache;
     }
 
     @Override
@@ -145,6 +1061,11 @@ public class ModuleLoaderImpl implements ModuleLoader {
         if (moduleName == null)
             return null;
 
+        RegistrySnapshot r = registry;
+
+        if (r != null)
+            return r.getModuleByName(moduleName);
+
         Collection<Module> modules = getLoadedModules();
 
         Module foundModule = null;
@@ -164,6 +1085,11 @@ public class ModuleLoaderImpl implements ModuleLoader {
         if (moduleCode == null)
             return null;
 
+        RegistrySnapshot r = registry;
+
+        if (r != null)
+            return r.getModuleByCode(moduleCode);
+
         Collection<Module> modules = getLoadedModules();
 
         Module foundModule = null;
@@ -185,6 +1111,11 @@ public class ModuleLoaderImpl implements ModuleLoader {
 
     @Override
     public final ClassLoader[] getModuleClassLoaders() {
+        RegistrySnapshot r = registry;
+
+        if (r != null)
+            return r.getModuleClassLoaders().clone();
+
         List<ClassLoader> moduleClassLoaders = new ArrayList<ClassLoader>();
 
         for (Module module : cache().getAll()) {
@@ -196,6 +1127,11 @@ public class ModuleLoaderImpl implements ModuleLoader {
 
     @Override
     public final String[] getPublicPackages() {
+        RegistrySnapshot r = registry;
+
+        if (r != null)
+            return r.getPublicPackages().clone();
+
         List<String> publicPackages = new ArrayList<String>();
 
         for (Module module : cache().getAll()) {
@@ -223,6 +1159,11 @@ public class ModuleLoaderImpl implements ModuleLoader {
         if (classOrPackageName == null)
             return false;
 
+        RegistrySnapshot r = registry;
+
+        if (r != null)
+            return r.exportsPackage(classOrPackageName, exactMatch);
+
         String[] packages = getPublicPackages();
 
         for (String aPackage : packages) {
@@ -238,6 +1179,11 @@ public class ModuleLoaderImpl implements ModuleLoader {
 
     @Override
     public final URL[] getPublicClasspath() {
+        RegistrySnapshot r = registry;
+
+        if (r != null)
+            return r.getPublicClasspath().clone();
+
         List<URL> publicClasspaths = new ArrayList<URL>();
 
         for (Module module : cache().getAll()) {
@@ -249,45 +1195,238 @@ public class ModuleLoaderImpl implements ModuleLoader {
 
     @Override
     public final ClassLoader getPublicClassLoader() {
-        return new PublicClassLoader(this);
+        return getPublicClassLoader((Map<String, ClassLoader>) null, null);
     }
 
     @Override
     public final ClassLoader getPublicClassLoader(ClassLoader fallbackClassLoader) {
-        return new PublicClassLoader(this, fallbackClassLoader);
+        return getPublicClassLoader((Map<String, ClassLoader>) null, fallbackClassLoader);
     }
 
     @Override
     public final ClassLoader getPublicClassLoader(String packagePrefix, ClassLoader classLoader) {
-        return new PublicClassLoader(this, packagePrefix, classLoader);
+        return getPublicClassLoader(Collections.singletonMap(packagePrefix, classLoader), null);
     }
 
     @Override
     public final ClassLoader getPublicClassLoader(String packagePrefix, ClassLoader classLoader, ClassLoader fallbackClassLoader) {
-        return new PublicClassLoader(this, packagePrefix, classLoader, fallbackClassLoader);
+        return getPublicClassLoader(Collections.singletonMap(packagePrefix, classLoader), fallbackClassLoader);
     }
 
     @Override
     public final ClassLoader getPublicClassLoader(Map<String, ClassLoader> classLoaderMap) {
-        return new PublicClassLoader(this, classLoaderMap);
+        return getPublicClassLoader(classLoaderMap, null);
     }
 
+    /**
+     * Returns the shared PublicClassLoader for this configuration, so that
+     * callers asking for the same package-prefixes and fallback class-loader
+     * benefit from the same resolved-class cache. The shared instances are
+     * dropped when the set of modules changes or once they are no longer
+     * referenced by any caller.
+     */
     @Override
     public final ClassLoader getPublicClassLoader(Map<String, ClassLoader> classLoaderMap, ClassLoader fallbackClassLoader) {
-        return new PublicClassLoader(this, classLoaderMap, fallbackClassLoader);
+        expungePublicClassLoaders();
+
+        PublicClassLoaderKey key = new PublicClassLoaderKey(classLoaderMap, fallbackClassLoader);
+
+        while (true) {
+            PublicClassLoaderReference reference = publicClassLoaders.get(key);
+            PublicClassLoader publicClassLoader = reference == null ? null : reference.get();
+
+            if (publicClassLoader != null)
+                return publicClassLoader;
+
+            PublicClassLoader newPublicClassLoader = new PublicClassLoader(this, classLoaderMap, fallbackClassLoader);
+            PublicClassLoaderReference newReference = new PublicClassLoaderReference(key, newPublicClassLoader, collectedPublicClassLoaders);
+
+            if (reference == null ? publicClassLoaders.putIfAbsent(key, newReference) == null : publicClassLoaders.replace(key, reference, newReference))
+                return newPublicClassLoader;
+        }
+    }
+
+    /**
+     * Removes the entries of shared PublicClassLoader instances that have been
+     * garbage-collected, releasing the class-loaders in their configuration.
+     */
+    private final void expungePublicClassLoaders() {
+        Reference<? extends PublicClassLoader> reference;
+
+        while ((reference = collectedPublicClassLoaders.poll()) != null) {
+            publicClassLoaders.remove(((PublicClassLoaderReference) reference).key, reference);
+        }
+    }
+
+    private static final class PublicClassLoaderReference extends WeakReference<PublicClassLoader> {
+        private final PublicClassLoaderKey key;
+
+        private PublicClassLoaderReference(final PublicClassLoaderKey key, final PublicClassLoader publicClassLoader, final ReferenceQueue<PublicClassLoader> queue) {
+            super(publicClassLoader, queue);
+            this.key = key;
+        }
+    }
+
+    /**
+     * The package-prefixes, in the order given, and the class-loaders of a
+     * PublicClassLoader configuration. Class-loaders are compared by identity
+     * and only weakly referenced. A key whose class-loaders have been
+     * collected no longer equals any other key and is removed together with
+     * its PublicClassLoader.
+     */
+    private static final class PublicClassLoaderKey {
+        private final String[] packagePrefixes;
+
+        private final Reference<ClassLoader>[] classLoaders;
+
+        private final int hashCode;
+
+        @SuppressWarnings("unchecked")
+        private PublicClassLoaderKey(final Map<String, ClassLoader> classLoaderMap, final ClassLoader fallbackClassLoader) {
+            int size = classLoaderMap == null ? 0 : classLoaderMap.size();
+            packagePrefixes = classLoaderMap == null ? null : new String[size];
+            classLoaders = new Reference[size + 1];
+
+            int hash = classLoaderMap == null ? 0 : 1;
+            int i = 0;
+
+            if (classLoaderMap != null) {
+                for (Map.Entry<String, ClassLoader> entry : classLoaderMap.entrySet()) {
+                    packagePrefixes[i] = entry.getKey();
+                    classLoaders[i++] = entry.getValue() == null ? null : new WeakReference<>(entry.getValue());
+                    hash = 31 * hash + Objects.hashCode(entry.getKey());
+                    hash = 31 * hash + System.identityHashCode(entry.getValue());
+                }
+            }
+
+            classLoaders[i] = fallbackClassLoader == null ? null : new WeakReference<>(fallbackClassLoader);
+            hashCode = 31 * hash + System.identityHashCode(fallbackClassLoader);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj)
+                return true;
+
+            if (!(obj instanceof PublicClassLoaderKey))
+                return false;
+
+            PublicClassLoaderKey other = (PublicClassLoaderKey) obj;
+
+            if (hashCode != other.hashCode || !Arrays.equals(packagePrefixes, other.packagePrefixes) || classLoaders.length != other.classLoaders.length)
+                return false;
+
+            for (int i = 0; i < classLoaders.length; i++) {
+                Reference<ClassLoader> ref = classLoaders[i];
+                Reference<ClassLoader> otherRef = other.classLoaders[i];
+
+                if (ref == null || otherRef == null) {
+                    if (ref != otherRef)
+                        return false;
+                } else {
+                    ClassLoader classLoader = ref.get();
+
+                    if (classLoader == null || classLoader != otherRef.get())
+                        return false;
+                }
+            }
+
+            return true;
+        }
     }
 
     @Override
     public final Class<?>[] findAllTypesAnnotatedWith(final Class<? extends Annotation> annotation, final boolean honorInherited) {
-        List<Class<?>> types = new ArrayList<Class<?>>();
+        return toTypeArray(queryActiveModules(new ModuleQuery<Class<?>[]>() {
+            public Class<?>[] query(final Module module) {
+                return module.findTypesAnnotatedWith(annotation, honorInherited);
+            }
+        }));
+    }
 
-        for (Module module : cache().getAll()) {
+    @Override
+    public final TypeDescriptor[] findAllTypeDescriptorsAnnotatedWith(final Class<? extends Annotation> annotation, final boolean honorInherited) {
+        List<TypeDescriptor> descriptors = new ArrayList<>();
+
+        for (TypeDescriptor[] moduleDescriptors : queryActiveModules(new ModuleQuery<TypeDescriptor[]>() {
+            public TypeDescriptor[] query(final Module module) {
+                return module.findTypeDescriptorsAnnotatedWith(annotation, honorInherited);
+            }
+        })) {
+            descriptors.addAll(Arrays.asList(moduleDescriptors));
+        }
+
+        return descriptors.toArray(new TypeDescriptor[descriptors.size()]);
+    }
+
+    @Override
+    public final Class<?>[] findSubTypesOf(final Class<?> type) {
+        return toTypeArray(queryActiveModules(new ModuleQuery<Class<?>[]>() {
+            public Class<?>[] query(final Module module) {
+                return module.findSubTypesOf(type);
+            }
+        }));
+    }
+
+    @Override
+    public final Class<?>[] findImplementationsOf(final Class<?> type) {
+        return toTypeArray(queryActiveModules(new ModuleQuery<Class<?>[]>() {
+            public Class<?>[] query(final Module module) {
+                return module.findImplementationsOf(type);
+            }
+        }));
+    }
+
+    /**
+     * A query that is answered by each module separately.
+     */
+    private interface ModuleQuery<T> {
+        T query(Module module);
+    }
+
+    /**
+     * Runs the query on all active modules in parallel, using the common
+     * fork-join pool. The results are returned in module order. When called
+     * from a module startup, the pool threads are marked as startup threads
+     * too, so that they do not wait for the startup that is waiting for them.
+     */
+    private final <T> List<T> queryActiveModules(final ModuleQuery<T> query) {
+        final boolean startupThread = STARTUP_THREAD.get() == Boolean.TRUE;
+        List<Callable<T>> tasks = new ArrayList<>();
+
+        for (final Module module : cache().getAll()) {
             if (module.isActive()) {
-                Class<?>[] annotatedTypes = module.findTypesAnnotatedWith(annotation, honorInherited);
+                tasks.add(new Callable<T>() {
+                    public T call() {
+                        if (!startupThread || STARTUP_THREAD.get() == Boolean.TRUE)
+                            return query.query(module);
 
-                if (annotatedTypes != null) {
-                    types.addAll(Arrays.asList(annotatedTypes));
-                }
+                        STARTUP_THREAD.set(Boolean.TRUE);
+
+                        try {
+                            return query.query(module);
+                        } finally {
+                            STARTUP_THREAD.remove();
+                        }
+                    }
+                });
+            }
+        }
+
+        return runAll(tasks, tasks.size() > 1 ? ForkJoinPool.commonPool() : null);
+    }
+
+    private static Class<?>[] toTypeArray(final List<Class<?>[]> moduleTypes) {
+        List<Class<?>> types = new ArrayList<Class<?>>();
+
+        for (Class<?>[] moduleType : moduleTypes) {
+            if (moduleType != null) {
+                types.addAll(Arrays.asList(moduleType));
             }
         }
 
@@ -342,21 +1481,113 @@ public class ModuleLoaderImpl implements ModuleLoader {
             LOG.finest("Looking up '" + className + "' with lookup parameters [moduleName=" + moduleName + ", moduleVendor=" + moduleVendor + ", versionRange=" + versionRange + "].");
         }
 
+        // Only plain lookups are remembered as failed, as a qualified lookup
+        // may find a class that a plain one does not, and the other way round.
+        boolean plainLookup = moduleName == null && moduleVendor == null && versionRange == null && inModules == null && forPackageImport == null && ignoreModuleName == null;
+
+        if (isKnownMissing(className, plainLookup)) {
+            throw new ModuleClassNotFoundException(className);
+        }
+
+        long epoch = registryEpoch.get();
+
         Module m = locateModule(className, moduleName, moduleVendor, versionRange, inModules, forPackageImport, ignoreModuleName);
 
         Class<?> c = null;
 
         if (m != null) {
-            c = m.loadClass(className);
+            c = loadClassOrNull(m, className);
         }
 
         if (c == null) {
-            throw new ClassNotFoundException();
+            // Remember plain lookups that failed, as these are the ones that
+            // are typically repeated (Class.forName() probing etc.).
+            if (plainLookup && registry != null) {
+                missingClasses.add(className, epoch);
+            }
+
+            throw new ClassNotFoundException(className);
         }
 
         return c;
     }
 
+    /**
+     * Finds a public resource of one of the modules. See {@link ResourceIndex}
+     * for which resources are included.
+     */
+    final URL findResource(final String name) {
+        return resourceIndex().findResource(name);
+    }
+
+    final URL[] findResources(final String name) {
+        return resourceIndex().findResources(name);
+    }
+
+    /**
+     * Records that the module providing the public resource is in use, for a
+     * resource that has been served from a cache.
+     */
+    final void markResourceUsed(final String name) {
+        resourceIndex().markUsed(name);
+    }
+
+    private final ResourceIndex resourceIndex() {
+        long epoch = registryEpoch.get();
+        ResourceIndex index = resourceIndex;
+
+        if (index == null || index.getEpoch() != epoch) {
+            synchronized (resourceIndexLock) {
+                index = resourceIndex;
+
+                if (index == null || index.getEpoch() != epoch) {
+                    long start = System.currentTimeMillis();
+
+                    index = ResourceIndex.build(cache().getAll(), epoch);
+                    resourceIndex = index;
+
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("Indexed " + index.size() + " public resources in " + (System.currentTimeMillis() - start) + "ms.");
+                    }
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Loads the class from the module without throwing a
+     * ClassNotFoundException if it does not exist.
+     */
+    static final Class<?> loadClassOrNull(final Module module, final String className) {
+        ClassLoader cl = module.getModuleClassLoader();
+
+        if (cl instanceof ModuleClassLoaderImpl)
+            return ((ModuleClassLoaderImpl) cl).loadClassOrNull(className);
+
+        try {
+            return module.loadClass(className);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the class is known not to exist in any module. This is
+     * the case if the global class-name filter rules it out and no module
+     * imports it from the container, or, for plain lookups, if an earlier
+     * plain lookup has already failed in the current registry epoch.
+     */
+    final boolean isKnownMissing(final String className, final boolean plainLookup) {
+        RegistrySnapshot r = registry;
+
+        if (r != null && r.rulesOut(className))
+            return true;
+
+        return plainLookup && missingClasses.contains(className, registryEpoch.get());
+    }
+
     @Override
     public final Module locateModule(final String className, final Collection<Module> inModules) {
         return locateModule(className, inModules, null);
@@ -411,10 +1642,53 @@ public class ModuleLoaderImpl implements ModuleLoader {
         if (className == null)
             throw new NullPointerException("The parameter className cannot be null");
 
+        RegistrySnapshot r = registry;
+        ExportIndex index = r == null ? null : r.getExportIndex();
+
+        if (index != null) {
+            // Only lookups that do not depend on a caller-specific set of
+            // modules can be cached.
+            boolean cacheable = inModules == null && forPackageImport == null;
+
+            long epoch = registryEpoch.get();
+            ResolutionCache.Key key = cacheable ? new ResolutionCache.Key(className, moduleName, moduleVendor, versionRange, ignoreModuleName) : null;
+
+            Module locatedModule = cacheable ? resolutionCache.get(key, epoch) : null;
+
+            if (locatedModule != null)
+                return locatedModule;
+
+            locatedModule = index.find(className, moduleName, moduleVendor, versionRange == null ? null : Versions.parseRange(versionRange), inModules, forPackageImport, ignoreModuleName);
+
+            if (cacheable && locatedModule != null) {
+                resolutionCache.put(key, locatedModule, epoch);
+            }
+
+            if (LOG.isLoggable(Level.FINER)) {
+                LOG.finer(locatedModule == null ? "No matching module found for class: " + className : "Returning located module " + locatedModule);
+            }
+
+            return locatedModule;
+        }
+
+        // Modules are still being initialized, so we need to search through
+        // all of them.
+        return scanForModule(className, moduleName, moduleVendor, versionRange, inModules, forPackageImport, ignoreModuleName);
+    }
+
+    /**
+     * Locates the module by going through all the modules and their
+     * package-exports. Only used while the export-index has not been built
+     * yet.
+     */
+    private final Module scanForModule(final String className, final String moduleName, final String moduleVendor, final String versionRange, final Collection<Module> inModules,
+        final PackageImport forPackageImport, final String ignoreModuleName) {
         List<Module> foundMatchingModules = new ArrayList<Module>();
 
         Module locatedModule = null;
 
+        Versions.Range range = versionRange == null ? null : Versions.parseRange(versionRange);
+
         Collection<Module> searchInModules = inModules == null ? cache().getAll() : inModules;
 
         for (Module module : searchInModules) {
@@ -451,7 +1725,7 @@ public class ModuleLoaderImpl implements ModuleLoader {
                         continue;
 
                     // check module version, if it was provided
-                    if (versionRange != null && !new VersionRange(versionRange).includes(packageExport.getVersion()))
+                    if (range != null && !range.includes(packageExport.getVersion()))
                         continue;
 
                     moduleMatches = true;
@@ -570,54 +1844,64 @@ public class ModuleLoaderImpl implements ModuleLoader {
      * Resolves dependencies for all modules
      */
     private final void resolveDependencies() {
+        DependencyResolver resolver = new DependencyResolver(cache().getAll());
+
         // Iterate through all the modules and find out what dependency they
         // want to import
         for (Module importingModule : cache().getAll()) {
-            List<Module> moduleDependencies = new ArrayList<Module>();
-
             if (LOG.isLoggable(Level.FINEST)) {
                 LOG.finest("Resolving dependencies for module: " + importingModule.toUniqueId());
             }
 
-            PackageImport[] moduleImports = importingModule.getImportPackages();
+            ModuleWiring wiring = resolver.resolve(importingModule);
 
             // No dependencies, so just continue
-            if (moduleImports == null)
+            if (wiring == null)
                 continue;
 
-            // Now iterate through all the imports and find matching exports in
-            // other modules
-            for (PackageImport moduleImport : moduleImports) {
-                // Now iterate through *other* modules and check their exports
-                for (Module exportingModule : cache().getAll()) {
-                    // Make sure that we are looking in *other* modules
-                    if (!exportingModule.equals(importingModule)) {
-                        if (exportingModule.hasMatchingPackageExport(moduleImport.getPrefix(), moduleImport.getVersionRange())) {
-                            if (LOG.isLoggable(Level.FINEST)) {
-                                LOG.finest("Adding dependency '" + exportingModule.toUniqueId() + "' to '" + importingModule.toUniqueId() + "'");
-                            }
-
-                            moduleDependencies.add(exportingModule);
-                        }
-                    }
-                }
-            }
+            setWiring(importingModule, wiring);
+        }
+    }
 
-            // Add dependencies to module
-            setDependencies(importingModule, moduleDependencies);
+    private final void setWiring(final Module module, final ModuleWiring wiring) {
+        if (module instanceof ModuleImpl) {
+            ((ModuleImpl) module).setWiring(wiring);
+        } else {
+            throw new ModuleException("Unable to set dependencies of module '" + module.toUniqueId() + "' because it is not an instance of " + ModuleImpl.class.getName());
         }
     }
 
-    private final void setDependencies(final Module module, final Collection<Module> dependencies) {
-        // Add dependencies to module via reflection, so that we do not need to
-        // add a public setter method to the
-        // interface.
+    /**
+     * Opens the packaged module and loads the module.properties from it. The
+     * archive is kept for constructing the module. Returns null if the file
+     * cannot be read as an archive or has no module.properties.
+     */
+    private final Properties getArchiveConfig(final ScannedModule scannedModule) {
         try {
-            Field field = module.getClass().getDeclaredField("dependencies");
-            field.setAccessible(true);
-            field.set(module, dependencies);
-        } catch (Throwable t) {
-            throw new RuntimeException(t.getMessage(), t);
+            ModuleArchive archive = ModuleArchive.open(scannedModule.dir);
+
+            try (InputStream in = archive.openStream(ModuleArchive.MODULE_PROPERTIES)) {
+                if (in == null) {
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.fine("No module.properties configuration file found in module archive '" + scannedModule.dir.getAbsolutePath() + "'.");
+                    }
+
+                    return null;
+                }
+
+                Properties moduleConfig = new Properties();
+                moduleConfig.load(in);
+
+                scannedModule.archive = archive;
+
+                return moduleConfig;
+            }
+        } catch (IOException e) {
+            if (LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Unable to read module archive '" + scannedModule.dir.getAbsolutePath() + "'. Skipping module.", e);
+            }
+
+            return null;
         }
     }
 
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.geemodule.api.Module;
+import com.geemodule.api.PackageExport;
+import com.geemodule.api.PackageImport;
+
+/**
+ * Immutable result of resolving the package-imports of a module: for every
+ * package-import the modules exporting a matching package, highest version
+ * first, and all of them together as the module's dependencies.
+ *
+ * The wiring also decides which dependency a class is loaded from. The
+ * decision is remembered per package, so that after the first class of a
+ * package only a single map lookup is needed.
+ */
+final class ModuleWiring {
+    private static final Module[] NO_MODULES = new Module[0];
+
+    private final PackageImport[] packageImports;
+
+    private final Module[][] exportingModules;
+
+    private final Collection<Module> dependencies;
+
+    /**
+     * Package-exports of the dependencies only.
+     */
+    private final ExportIndex exportIndex;
+
+    /**
+     * Packages for which the exporting module cannot be decided by the
+     * package-name alone, because an import or export prefix ends within a
+     * class-name (e.g. 'com.a.Example').
+     */
+    private final Set<String> classLevelPackages = new HashSet<>();
+
+    /**
+     * Exporting module per imported package, filled on first use.
+     */
+    private final ConcurrentHashMap<String, Module> exporterByPackage = new ConcurrentHashMap<>();
+
+    ModuleWiring(final PackageImport[] packageImports, final Module[][] exportingModules) {
+        this.packageImports = packageImports;
+        this.exportingModules = exportingModules;
+
+        Set<Module> allDependencies = new LinkedHashSet<>();
+
+        for (Module[] modules : exportingModules) {
+            allDependencies.addAll(Arrays.asList(modules));
+        }
+
+        this.dependencies = Collections.unmodifiableList(new ArrayList<>(allDependencies));
+        this.exportIndex = ExportIndex.build(this.dependencies);
+
+        for (PackageImport packageImport : packageImports) {
+            addClassLevelPackage(packageImport.getPrefix());
+        }
+
+        for (Module dependency : this.dependencies) {
+            if (dependency.getExportPackages() != null) {
+                for (PackageExport packageExport : dependency.getExportPackages()) {
+                    addClassLevelPackage(packageExport.getPrefix());
+                }
+            }
+        }
+    }
+
+    private void addClassLevelPackage(final String prefix) {
+        int lastDot = prefix.lastIndexOf('.');
+
+        if (lastDot != -1 && lastDot < prefix.length() - 1) {
+            classLevelPackages.add(prefix.substring(0, lastDot));
+        } else if (lastDot == -1) {
+            classLevelPackages.add("");
+        }
+    }
+
+    /**
+     * Creates the wiring from an already known list of dependencies, for
+     * example one taken from the bootstrap snapshot.
+     */
+    static ModuleWiring of(final Module importingModule, final Collection<Module> dependencies) {
+        PackageImport[] packageImports = importingModule.getImportPackages();
+        Module[][] exportingModules = new Module[packageImports.length][];
+
+        for (int i = 0; i < packageImports.length; i++) {
+            List<Module> modules = new ArrayList<>();
+
+            for (Module dependency : dependencies) {
+                if (dependency.hasMatchingPackageExport(packageImports[i].getPrefix(), packageImports[i].getVersionRange())) {
+                    modules.add(dependency);
+                }
+            }
+
+            Collections.sort(modules, Collections.reverseOrder());
+            exportingModules[i] = modules.toArray(new Module[modules.size()]);
+        }
+
+        return new ModuleWiring(packageImports, exportingModules);
+    }
+
+    Collection<Module> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * Modules that export a package matching the package-import, highest
+     * version first.
+     */
+    Module[] getExportingModules(final PackageImport packageImport) {
+        for (int i = 0; i < packageImports.length; i++) {
+            if (packageImports[i] == packageImport)
+                return exportingModules[i];
+        }
+
+        return NO_MODULES;
+    }
+
+    /**
+     * Finds the dependency that the class should be loaded from, i.e. the
+     * module with the most specific matching package-export and the highest
+     * version, among the modules wired to the first matching package-import.
+     * Modules with the same name as the importing module are never returned.
+     */
+    Module findExportingModule(final String className, final String importingModuleName) {
+        String packageName = ModuleContentIndex.packageOf(className);
+
+        Module m = exporterByPackage.get(packageName);
+
+        if (m != null)
+            return m;
+
+        int i = findPackageImportIndex(className);
+
+        if (i == -1)
+            return null;
+
+        m = exportIndex.find(className, null, null, null, Arrays.asList(exportingModules[i]), null, importingModuleName);
+
+        if (m != null && !classLevelPackages.contains(packageName)) {
+            exporterByPackage.put(packageName, m);
+        }
+
+        return m;
+    }
+
+    private int findPackageImportIndex(final String className) {
+        for (int i = 0; i < packageImports.length; i++) {
+            if (className.startsWith(packageImports[i].getPrefix()))
+                return i;
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers names that could not be found, so that repeated lookups can be
+ * rejected without searching again. All names are dropped when the registry
+ * epoch of the module-loader changes, i.e. when modules have been added or
+ * reloaded, and when the configured maximum size
+ * ('geemodule.negative.cache.size') is reached.
+ */
+final class NegativeLookupCache {
+    private static final int MAX_SIZE = Math.max(1, Integer.getInteger("geemodule.negative.cache.size", 10000));
+
+    /**
+     * The names of the current epoch. A new holder is swapped in when the
+     * epoch changes, so a lookup that started in an older epoch can only add
+     * its name to the old, discarded holder.
+     */
+    private volatile Names current = new Names(-1);
+
+    boolean contains(final String name, final long currentEpoch) {
+        Names n = current;
+
+        if (n.epoch != currentEpoch) {
+            return false;
+        }
+
+        return n.names.contains(name);
+    }
+
+    void add(final String name, final long currentEpoch) {
+        Names n = current;
+
+        if (n.epoch != currentEpoch) {
+            synchronized (this) {
+                n = current;
+
+                // The lookup started before the modules changed, so its
+                // result is no longer valid.
+                if (currentEpoch < n.epoch)
+                    return;
+
+                if (n.epoch != currentEpoch) {
+                    n = new Names(currentEpoch);
+                    current = n;
+                }
+            }
+        }
+
+        if (n.names.size() >= MAX_SIZE) {
+            n.names.clear();
+        }
+
+        n.names.add(name);
+    }
+
+    void clear() {
+        current.names.clear();
+    }
+
+    private static final class Names {
+        private final long epoch;
+
+        private final Set<String> names = ConcurrentHashMap.newKeySet();
+
+        private Names(final long epoch) {
+            this.epoch = epoch;
+        }
+    }
+}
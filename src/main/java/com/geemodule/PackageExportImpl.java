@@ -31,10 +31,12 @@ import com.geemodule.api.PackageExport;
 public class PackageExportImpl implements PackageExport {
     private final String prefix;
     private final Version version;
+    private final long versionKey;
 
     public PackageExportImpl(final String packagePrefix, final Version version) {
         this.prefix = packagePrefix.trim();
         this.version = version;
+        this.versionKey = Versions.pack(version);
     }
 
     public final String getPrefix() {
@@ -44,4 +46,11 @@ public class PackageExportImpl implements PackageExport {
     public final Version getVersion() {
         return version;
     }
+
+    /**
+     * The version in packed form, see {@link Versions#pack(Version)}.
+     */
+    final long getVersionKey() {
+        return versionKey;
+    }
 }
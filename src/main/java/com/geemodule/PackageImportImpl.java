@@ -31,7 +31,7 @@ import com.geemodule.api.PackageImport;
  */
 public class PackageImportImpl implements PackageImport {
     private final String prefix;
-    private final VersionRange versionRange;
+    private final Versions.Range versionRange;
 
     public PackageImportImpl(final String packageAndVersion) {
         if (packageAndVersion == null || "".equals(packageAndVersion.trim())) {
@@ -41,10 +41,10 @@ public class PackageImportImpl implements PackageImport {
         if (packageAndVersion.contains("@version=")) {
             String[] split = packageAndVersion.split("@version=");
             this.prefix = split[0].trim();
-            this.versionRange = new VersionRange(split[1].trim());
+            this.versionRange = Versions.parseRange(split[1].trim());
         } else {
             this.prefix = packageAndVersion.trim();
-            this.versionRange = new VersionRange("0.0.0");
+            this.versionRange = Versions.parseRange("0.0.0");
         }
     }
 
@@ -53,6 +53,10 @@ public class PackageImportImpl implements PackageImport {
     }
 
     public final VersionRange getVersionRange() {
+        return versionRange.getVersionRange();
+    }
+
+    final Versions.Range getRange() {
         return versionRange;
     }
 }
@@ -18,13 +18,30 @@ package com.geemodule;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.geemodule.api.Module;
 import com.geemodule.api.ModuleLoader;
 
+/**
+ * ClassLoader giving access to the classes of all modules, typically set as
+ * the context class-loader of request threads. Classes are resolved without
+ * holding a lock, as this class-loader never defines any classes itself, and
+ * are cached until the set of modules changes. The per-name locking of
+ * ClassLoader.loadClass() is bypassed on purpose: it only guards against
+ * defining a class twice, which is left to the module class-loaders that
+ * actually define the classes. Two threads resolving the same name at the
+ * same time therefore at worst both delegate and get the same class back.
+ * Instances are immutable, so the module-loader can hand out the same
+ * instance for the same configuration.
+ */
 public class PublicClassLoader extends ClassLoader {
     static {
         try {
@@ -39,6 +56,15 @@ public class PublicClassLoader extends ClassLoader {
     private final Map<String, ClassLoader> classLoaderMap;
     private final ClassLoader fallbackClassLoader;
 
+    /**
+     * Classes and resources resolved by this class-loader, valid for the
+     * registry epoch {@link #resolvedEpoch}.
+     */
+    private final Map<String, Class<?>> resolvedClasses = new ConcurrentHashMap<>();
+    private final Map<String, URL> resolvedResources = new ConcurrentHashMap<>();
+    private final NegativeLookupCache missingResources = new NegativeLookupCache();
+    private volatile long resolvedEpoch = -1;
+
     public PublicClassLoader(ModuleLoader moduleLoader) {
         this.moduleLoader = moduleLoader;
         this.classLoaderMap = new LinkedHashMap<>();
@@ -67,28 +93,161 @@ public class PublicClassLoader extends ClassLoader {
 
     public PublicClassLoader(ModuleLoader moduleLoader, Map<String, ClassLoader> classLoaderMap) {
         this.moduleLoader = moduleLoader;
-        this.classLoaderMap = classLoaderMap;
+        this.classLoaderMap = classLoaderMap == null ? null : Collections.unmodifiableMap(new LinkedHashMap<>(classLoaderMap));
         this.fallbackClassLoader = null;
     }
 
     public PublicClassLoader(ModuleLoader moduleLoader, Map<String, ClassLoader> classLoaderMap, ClassLoader fallbackClassLoader) {
         this.moduleLoader = moduleLoader;
-        this.classLoaderMap = classLoaderMap;
+        this.classLoaderMap = classLoaderMap == null ? null : Collections.unmodifiableMap(new LinkedHashMap<>(classLoaderMap));
         this.fallbackClassLoader = fallbackClassLoader;
     }
 
+    /**
+     * Finds a public resource of the modules. Resources matching one of the
+     * package-prefixes are looked up in the mapped class-loader, all others in
+     * the module-loader's resource index and then in the fallback
+     * class-loader. Results are cached until the set of modules changes.
+     */
     @Override
     public final URL findResource(final String name) {
-        throw new UnsupportedOperationException();
+        String resourceName = normalize(name);
+
+        long epoch = checkEpoch();
+
+        URL url = resolvedResources.get(resourceName);
+
+        if (url != null || missingResources.contains(resourceName, epoch)) {
+            if (url != null && IdleModuleUnloader.IDLE_TIMEOUT > 0 && moduleLoader instanceof ModuleLoaderImpl && findPrefixClassLoader(resourceName) == null)
+                ((ModuleLoaderImpl) moduleLoader).markResourceUsed(resourceName);
+
+            return url;
+        }
+
+        ClassLoader prefixClassLoader = findPrefixClassLoader(resourceName);
+
+        if (prefixClassLoader != null) {
+            url = prefixClassLoader.getResource(resourceName);
+        } else {
+            url = findModuleResource(resourceName);
+
+            if (url == null && fallbackClassLoader != null)
+                url = fallbackClassLoader.getResource(resourceName);
+        }
+
+        if (url != null) {
+            if (epoch == registryEpoch())
+                resolvedResources.put(resourceName, url);
+        } else {
+            missingResources.add(resourceName, epoch);
+        }
+
+        return url;
     }
 
     @Override
     public final Enumeration<URL> findResources(final String name) throws IOException {
-        throw new UnsupportedOperationException();
+        String resourceName = normalize(name);
+
+        ClassLoader prefixClassLoader = findPrefixClassLoader(resourceName);
+
+        if (prefixClassLoader != null)
+            return prefixClassLoader.getResources(resourceName);
+
+        List<URL> urls = new ArrayList<>(findModuleResources(resourceName));
+
+        if (fallbackClassLoader != null)
+            urls.addAll(Collections.list(fallbackClassLoader.getResources(resourceName)));
+
+        return Collections.enumeration(urls);
+    }
+
+    private final URL findModuleResource(final String name) {
+        if (moduleLoader instanceof ModuleLoaderImpl)
+            return ((ModuleLoaderImpl) moduleLoader).findResource(name);
+
+        for (Module module : moduleLoader.getLoadedModules()) {
+            URL url = module.getModuleClassLoader().getResource(name);
+
+            if (url != null)
+                return url;
+        }
+
+        return null;
+    }
+
+    private final List<URL> findModuleResources(final String name) throws IOException {
+        if (moduleLoader instanceof ModuleLoaderImpl)
+            return Arrays.asList(((ModuleLoaderImpl) moduleLoader).findResources(name));
+
+        List<URL> urls = new ArrayList<>();
+
+        for (Module module : moduleLoader.getLoadedModules()) {
+            urls.addAll(Collections.list(module.getModuleClassLoader().getResources(name)));
+        }
+
+        return urls;
+    }
+
+    /**
+     * Returns the class-loader that the package-prefix mapping assigns to the
+     * resource, e.g. 'com.acme.' for 'com/acme/templates/page.html', or null
+     * if no prefix matches.
+     */
+    private final ClassLoader findPrefixClassLoader(final String resourceName) {
+        if (classLoaderMap == null || classLoaderMap.isEmpty() || Boolean.getBoolean("cp.localmode"))
+            return null;
+
+        String dottedName = resourceName.replace('/', '.');
+
+        for (Map.Entry<String, ClassLoader> entry : classLoaderMap.entrySet()) {
+            if (dottedName.startsWith(entry.getKey()))
+                return entry.getValue();
+        }
+
+        return null;
+    }
+
+    private static String normalize(final String name) {
+        return name.startsWith("/") ? name.substring(1) : name;
     }
 
     @Override
-    public final synchronized Class<?> loadClass(final String name) throws ClassNotFoundException {
+    public final Class<?> loadClass(final String name) throws ClassNotFoundException {
+        long epoch = checkEpoch();
+
+        Class<?> c = resolvedClasses.get(name);
+
+        if (c == null) {
+            c = resolveClass(name);
+
+            if (c != null && epoch == registryEpoch()) {
+                resolvedClasses.put(name, c);
+            }
+        } else if (IdleModuleUnloader.IDLE_TIMEOUT > 0 && c.getClassLoader() instanceof ModuleClassLoaderImpl) {
+            ((ModuleClassLoaderImpl) c.getClassLoader()).markUsed();
+        }
+
+        return c;
+    }
+
+    /**
+     * Drops all cached classes and resources if the modules have changed
+     * since they were resolved. Returns the current registry epoch.
+     */
+    private final long checkEpoch() {
+        long epoch = registryEpoch();
+
+        if (epoch != resolvedEpoch) {
+            resolvedClasses.clear();
+            resolvedResources.clear();
+            resolvedEpoch = epoch;
+        }
+
+        return epoch;
+    }
+
+    private final Class<?> resolveClass(final String name) throws ClassNotFoundException {
         // If the class has already been loaded, just return that
         Class<?> c = findLoadedClass(name);
 
@@ -99,17 +258,14 @@ public class PublicClassLoader extends ClassLoader {
         boolean isLocalMode = Boolean.getBoolean("cp.localmode");
 
         if (!isStandardClass(name) && !isLocalMode && classLoaderMap != null && !classLoaderMap.isEmpty()) {
-            Set<String> keys = classLoaderMap.keySet();
-
             boolean foundMatch = false;
 
-            for (String packagePrefix : keys) {
-                if (name.startsWith(packagePrefix)) {
+            for (Map.Entry<String, ClassLoader> entry : classLoaderMap.entrySet()) {
+                if (name.startsWith(entry.getKey())) {
                     foundMatch = true;
 
                     try {
-                        ClassLoader cl = classLoaderMap.get(packagePrefix);
-                        c = cl.loadClass(name);
+                        c = entry.getValue().loadClass(name);
 
                         return c;
                     } catch (Throwable t) {
@@ -151,6 +307,10 @@ public class PublicClassLoader extends ClassLoader {
         return c;
     }
 
+    private final long registryEpoch() {
+        return moduleLoader instanceof ModuleLoaderImpl ? ((ModuleLoaderImpl) moduleLoader).getRegistryEpoch() : 0;
+    }
+
     private final boolean isStandardClass(final String name) {
         boolean isStandardClass = false;
 
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.geemodule.api.Module;
+import com.geemodule.api.PackageImport;
+
+/**
+ * Immutable view of the registered modules. The module-loader publishes a
+ * new snapshot whenever the set of modules changes, so that readers get all
+ * data that only depends on the module set with a single volatile read and
+ * without rebuilding it on every call.
+ *
+ * The module class-loaders and the public classpath are only determined on
+ * first use, as they require the modules to be activated. They are kept
+ * until the next snapshot is published, which also happens when idle
+ * modules have been unloaded.
+ */
+final class RegistrySnapshot {
+    private final Module[] modules;
+
+    private final ExportIndex exportIndex;
+
+    /**
+     * Names of all classes in all modules, for rejecting lookups of classes
+     * that do not exist anywhere. Null if not available.
+     */
+    private final BloomFilter classNameFilter;
+
+    /**
+     * Prefixes of all packages that modules import from the container. Such
+     * classes are not in the class-name filter.
+     */
+    private final String[] containerImportPrefixes;
+
+    private final String[] publicPackages;
+
+    private final Set<String> publicPackageSet;
+
+    /**
+     * Modules by name and by code. If several modules share a name or code,
+     * the first one in registry order wins. Lookups by unique id go to the
+     * module cache, which is keyed by it.
+     */
+    private final Map<String, Module> modulesByName;
+
+    private final Map<String, Module> modulesByCode;
+
+    private volatile ClassLoader[] moduleClassLoaders = null;
+
+    private volatile URL[] publicClasspath = null;
+
+    private RegistrySnapshot(final Module[] modules, final ExportIndex exportIndex, final BloomFilter classNameFilter, final String[] containerImportPrefixes,
+        final String[] publicPackages) {
+        this.modules = modules;
+        this.exportIndex = exportIndex;
+        this.classNameFilter = classNameFilter;
+        this.containerImportPrefixes = containerImportPrefixes;
+        this.publicPackages = publicPackages;
+        this.publicPackageSet = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(publicPackages)));
+
+        Map<String, Module> byName = new HashMap<>();
+        Map<String, Module> byCode = new HashMap<>();
+
+        for (Module module : modules) {
+            if (!byName.containsKey(module.getName()))
+                byName.put(module.getName(), module);
+
+            if (!byCode.containsKey(module.getCode()))
+                byCode.put(module.getCode(), module);
+        }
+
+        this.modulesByName = byName;
+        this.modulesByCode = byCode;
+    }
+
+    static RegistrySnapshot build(final Collection<Module> modules) {
+        List<String> publicPackages = new ArrayList<>();
+
+        for (Module module : modules) {
+            publicPackages.addAll(Arrays.asList(module.getPublicPackages()));
+        }
+
+        return new RegistrySnapshot(modules.toArray(new Module[modules.size()]), ExportIndex.build(modules), buildClassNameFilter(modules),
+            findContainerImportPrefixes(modules), publicPackages.toArray(new String[publicPackages.size()]));
+    }
+
+    /**
+     * Same module set, but without the class-loaders and the public
+     * classpath determined so far.
+     */
+    RegistrySnapshot withoutClassLoaders() {
+        return new RegistrySnapshot(modules, exportIndex, classNameFilter, containerImportPrefixes, publicPackages);
+    }
+
+    Module getModuleByName(final String moduleName) {
+        return modulesByName.get(moduleName);
+    }
+
+    Module getModuleByCode(final String moduleCode) {
+        return modulesByCode.get(moduleCode);
+    }
+
+    ExportIndex getExportIndex() {
+        return exportIndex;
+    }
+
+    /**
+     * Checks whether the class-name filter rules the class out, unless it is
+     * imported from the container.
+     */
+    boolean rulesOut(final String className) {
+        BloomFilter filter = classNameFilter;
+
+        if (filter == null || filter.mightContain(className))
+            return false;
+
+        for (String prefix : containerImportPrefixes) {
+            if (className.startsWith(prefix))
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * The public packages of all modules. Must not be modified.
+     */
+    String[] getPublicPackages() {
+        return publicPackages;
+    }
+
+    /**
+     * Checks the name against the public packages. Without exactMatch, the
+     * export-index is used to find a package that the name starts with.
+     */
+    boolean exportsPackage(final String classOrPackageName, final boolean exactMatch) {
+        if (exactMatch)
+            return publicPackageSet.contains(classOrPackageName);
+
+        return exportIndex.find(classOrPackageName, null, null, null, null, null, null) != null;
+    }
+
+    /**
+     * The class-loaders of all modules. Must not be modified. Activates the
+     * modules that have not been activated yet.
+     */
+    ClassLoader[] getModuleClassLoaders() {
+        ClassLoader[] classLoaders = moduleClassLoaders;
+
+        if (classLoaders == null) {
+            classLoaders = new ClassLoader[modules.length];
+
+            for (int i = 0; i < modules.length; i++) {
+                classLoaders[i] = modules[i].getModuleClassLoader();
+            }
+
+            moduleClassLoaders = classLoaders;
+        }
+
+        return classLoaders;
+    }
+
+    /**
+     * The public classpath of all modules. Must not be modified. Activates
+     * the modules that have not been activated yet.
+     */
+    URL[] getPublicClasspath() {
+        URL[] classpath = publicClasspath;
+
+        if (classpath == null) {
+            List<URL> urls = new ArrayList<>();
+
+            for (Module module : modules) {
+                urls.addAll(Arrays.asList(module.getPublicClasspath()));
+            }
+
+            classpath = urls.toArray(new URL[urls.size()]);
+            publicClasspath = classpath;
+        }
+
+        return classpath;
+    }
+
+    /**
+     * Builds a Bloom filter over the names of all classes contained in the
+     * modules. Returns null if a module has no content index, e.g. when
+     * running in local-mode or when modules are activated lazily, as nothing
+     * can be ruled out then.
+     */
+    private static BloomFilter buildClassNameFilter(final Collection<Module> modules) {
+        List<ModuleContentIndex> contentIndexes = new ArrayList<>(modules.size());
+        int numClasses = 0;
+
+        for (Module module : modules) {
+            ModuleContentIndex contentIndex = module instanceof ModuleImpl ? ((ModuleImpl) module).getContentIndex() : null;
+
+            if (contentIndex == null)
+                return null;
+
+            contentIndexes.add(contentIndex);
+            numClasses += contentIndex.getClassNameHashes().length;
+        }
+
+        BloomFilter filter = BloomFilter.create(numClasses);
+
+        for (ModuleContentIndex contentIndex : contentIndexes) {
+            for (int hash : contentIndex.getClassNameHashes()) {
+                filter.add(hash);
+            }
+        }
+
+        return filter;
+    }
+
+    private static String[] findContainerImportPrefixes(final Collection<Module> modules) {
+        Set<String> prefixes = new LinkedHashSet<>();
+
+        for (Module module : modules) {
+            if (module.isImportPackagesFromContainer() && module instanceof ModuleImpl) {
+                PackageImport[] containerImports = ((ModuleImpl) module).getContainerImportPackages();
+
+                if (containerImports != null) {
+                    for (PackageImport containerImport : containerImports) {
+                        prefixes.add(containerImport.getPrefix());
+                    }
+                }
+            }
+        }
+
+        return prefixes.toArray(new String[prefixes.size()]);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.geemodule.api.Module;
+
+/**
+ * Bounded cache remembering which module a class-name has been located in.
+ * Entries are tagged with the registry epoch of the module-loader at the time
+ * they were created and are ignored once the epoch has moved on, i.e. as soon
+ * as the set of modules has changed.
+ *
+ * The hit and miss counters can be used to find a suitable size, which is
+ * configured with the system property 'geemodule.resolution.cache.size'.
+ */
+public final class ResolutionCache {
+    private static final int DEFAULT_MAX_SIZE = 10000;
+
+    /**
+     * Lookup parameters of a located module.
+     */
+    static final class Key {
+        private final String className;
+        private final String moduleName;
+        private final String moduleVendor;
+        private final String versionRange;
+        private final String ignoreModuleName;
+        private final int hash;
+
+        Key(final String className, final String moduleName, final String moduleVendor, final String versionRange, final String ignoreModuleName) {
+            this.className = className;
+            this.moduleName = moduleName;
+            this.moduleVendor = moduleVendor;
+            this.versionRange = versionRange;
+            this.ignoreModuleName = ignoreModuleName;
+            this.hash = Objects.hash(className, moduleName, moduleVendor, versionRange, ignoreModuleName);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj)
+                return true;
+
+            if (!(obj instanceof Key))
+                return false;
+
+            Key other = (Key) obj;
+
+            return hash == other.hash && className.equals(other.className) && Objects.equals(moduleName, other.moduleName) && Objects.equals(moduleVendor, other.moduleVendor)
+                && Objects.equals(versionRange, other.versionRange) && Objects.equals(ignoreModuleName, other.ignoreModuleName);
+        }
+    }
+
+    private static final class Entry {
+        private final Module module;
+        private final long epoch;
+
+        private Entry(final Module module, final long epoch) {
+            this.module = module;
+            this.epoch = epoch;
+        }
+    }
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+
+    private final int maxSize;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    ResolutionCache() {
+        this.maxSize = Math.max(1, Integer.getInteger("geemodule.resolution.cache.size", DEFAULT_MAX_SIZE));
+    }
+
+    /**
+     * Returns the cached module or null if the key is unknown or has been
+     * cached in a previous epoch.
+     */
+    Module get(final Key key, final long epoch) {
+        Entry entry = entries.get(key);
+
+        if (entry != null && entry.epoch == epoch) {
+            hits.increment();
+            return entry.module;
+        }
+
+        misses.increment();
+
+        return null;
+    }
+
+    void put(final Key key, final Module module, final long epoch) {
+        if (entries.size() >= maxSize) {
+            evict();
+        }
+
+        entries.put(key, new Entry(module, epoch));
+    }
+
+    /**
+     * Drops all entries. Called whenever the set of modules changes.
+     */
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Removes about a tenth of the entries. The ConcurrentHashMap does not
+     * keep any order, so this effectively evicts random entries, which is
+     * good enough for a cache that is sized to hold the working set.
+     */
+    private void evict() {
+        int toRemove = Math.max(1, maxSize / 10);
+
+        Iterator<Key> it = entries.keySet().iterator();
+
+        while (toRemove-- > 0 && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public String toString() {
+        return "ResolutionCache [size=" + size() + ", maxSize=" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses() + "]";
+    }
+}
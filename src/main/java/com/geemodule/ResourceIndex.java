@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import com.geemodule.api.Module;
+import com.geemodule.api.PackageExport;
+
+/**
+ * Index of the resources that modules make publicly available: everything in
+ * their 'resources' and 'web' folders and the non-class files in their
+ * exported packages, both in the classes folder and in the lib jars. Names
+ * are the same as for {@link ModuleImpl#locateResource(String)}, i.e.
+ * 'web/...' for files in the web folder. If several modules contain the same
+ * resource, all URLs are kept in module order.
+ */
+final class ResourceIndex {
+    private static final Logger LOG = Logger.getLogger(ResourceIndex.class.getName());
+
+    private static final URL[] NO_URLS = new URL[0];
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final Map<String, URL[]> resources;
+
+    /**
+     * The module of each URL, only kept if idle modules are unloaded, see
+     * {@link #markUsed(String)}.
+     */
+    private final Map<URL, ModuleImpl> owners;
+
+    private final long epoch;
+
+    private ResourceIndex(final Map<String, URL[]> resources, final Map<URL, ModuleImpl> owners, final long epoch) {
+        this.resources = resources;
+        this.owners = owners;
+        this.epoch = epoch;
+    }
+
+    /**
+     * The registry epoch that this index was built for.
+     */
+    long getEpoch() {
+        return epoch;
+    }
+
+    URL findResource(final String name) {
+        URL[] urls = resources.get(name);
+
+        if (urls == null)
+            return null;
+
+        if (owners != null)
+            markUsed(urls[0]);
+
+        return urls[0];
+    }
+
+    URL[] findResources(final String name) {
+        URL[] urls = resources.get(name);
+
+        if (urls == null)
+            return NO_URLS;
+
+        if (owners != null) {
+            for (URL url : urls) {
+                markUsed(url);
+            }
+        }
+
+        return urls.clone();
+    }
+
+    /**
+     * Records that the module providing the resource is in use, see
+     * {@link IdleModuleUnloader}.
+     */
+    void markUsed(final String name) {
+        URL[] urls = resources.get(name);
+
+        if (urls != null && owners != null)
+            markUsed(urls[0]);
+    }
+
+    private void markUsed(final URL url) {
+        ModuleImpl owner = owners.get(url);
+
+        if (owner != null)
+            owner.markUsed();
+    }
+
+    int size() {
+        return resources.size();
+    }
+
+    static ResourceIndex build(final Collection<Module> modules, final long epoch) {
+        Map<String, List<URL>> resources = new HashMap<>();
+        Map<URL, ModuleImpl> owners = IdleModuleUnloader.IDLE_TIMEOUT > 0 ? new IdentityHashMap<URL, ModuleImpl>() : null;
+
+        for (Module module : modules) {
+            if (!module.isActive())
+                continue;
+
+            if (owners != null && module instanceof ModuleImpl) {
+                Map<String, List<URL>> moduleResources = new HashMap<>();
+                addModule(moduleResources, module);
+
+                for (Map.Entry<String, List<URL>> entry : moduleResources.entrySet()) {
+                    for (URL url : entry.getValue()) {
+                        add(resources, entry.getKey(), url);
+                        owners.put(url, (ModuleImpl) module);
+                    }
+                }
+            } else {
+                addModule(resources, module);
+            }
+        }
+
+        Map<String, URL[]> index = new HashMap<>(resources.size() * 4 / 3 + 1);
+
+        for (Map.Entry<String, List<URL>> entry : resources.entrySet()) {
+            List<URL> urls = entry.getValue();
+            index.put(entry.getKey(), urls.toArray(new URL[urls.size()]));
+        }
+
+        return new ResourceIndex(index, owners, epoch);
+    }
+
+    private static void addModule(final Map<String, List<URL>> resources, final Module module) {
+        ModuleArchive archive = module instanceof ModuleImpl ? ((ModuleImpl) module).getArchive() : null;
+
+        if (archive != null) {
+            addArchive(resources, archive, module.getExportPackages());
+            return;
+        }
+
+        addDirectory(resources, module.getResourcesDir(), "", null);
+        addDirectory(resources, module.getWebDir(), "web/", null);
+
+        PackageExport[] packageExports = module.getExportPackages();
+
+        if (packageExports == null || packageExports.length == 0)
+            return;
+
+        addDirectory(resources, module.getClassesDir(), "", packageExports);
+
+        if (module instanceof ModuleImpl) {
+            for (URL jar : ((ModuleImpl) module).getJars()) {
+                addJar(resources, jar, packageExports);
+            }
+        }
+    }
+
+    private static void addDirectory(final Map<String, List<URL>> resources, final Path dir, final String namePrefix, final PackageExport[] packageExports) {
+        if (!Files.isDirectory(dir))
+            return;
+
+        try {
+            Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    String name = namePrefix + dir.relativize(file).toString().replace(File.separatorChar, '/');
+
+                    if (packageExports == null || isExported(name, packageExports)) {
+                        add(resources, name, file.toUri().toURL());
+                    }
+
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            if (LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Unable to index resources in '" + dir + "'.", e);
+            }
+        }
+    }
+
+    /**
+     * Same as for a module directory, but from the entry tables of the
+     * archive and the jars in its 'lib' folder.
+     */
+    private static void addArchive(final Map<String, List<URL>> resources, final ModuleArchive archive, final PackageExport[] packageExports) {
+        addArchiveFolder(resources, archive, "resources/", "", null);
+        addArchiveFolder(resources, archive, "web/", "web/", null);
+
+        if (packageExports == null || packageExports.length == 0)
+            return;
+
+        addArchiveFolder(resources, archive, "classes/", "", packageExports);
+
+        for (String lib : archive.listFiles("lib/")) {
+            try {
+                addArchiveFolder(resources, archive.openNested(lib), "", "", packageExports);
+            } catch (IOException e) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Unable to index resources in '" + lib + "' of '" + archive + "'.", e);
+                }
+            }
+        }
+    }
+
+    private static void addArchiveFolder(final Map<String, List<URL>> resources, final ModuleArchive archive, final String folder, final String namePrefix,
+        final PackageExport[] packageExports) {
+        for (String entry : archive.list(folder)) {
+            String name = namePrefix + entry.substring(folder.length());
+
+            if (packageExports == null || isExported(name, packageExports)) {
+                add(resources, name, archive.toURL(entry));
+            }
+        }
+    }
+
+    private static void addJar(final Map<String, List<URL>> resources, final URL jar, final PackageExport[] packageExports) {
+        try (ZipFile zipFile = new ZipFile(new File(jar.toURI()))) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+
+                if (!entry.isDirectory() && isExported(name, packageExports)) {
+                    add(resources, name, new URL("jar:" + jar.toExternalForm() + "!/" + name));
+                }
+            }
+        } catch (IOException | URISyntaxException e) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Unable to index resources in '" + jar + "'.", e);
+            }
+        }
+    }
+
+    /**
+     * Checks whether the resource lies within one of the exported packages.
+     * Class files are not resources in this sense and are never included.
+     */
+    private static boolean isExported(final String name, final PackageExport[] packageExports) {
+        if (name.endsWith(CLASS_SUFFIX))
+            return false;
+
+        String dottedName = name.replace('/', '.');
+
+        for (PackageExport packageExport : packageExports) {
+            if (dottedName.startsWith(packageExport.getPrefix()))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static void add(final Map<String, List<URL>> resources, final String name, final URL url) {
+        List<URL> urls = resources.get(name);
+
+        if (urls == null) {
+            urls = new ArrayList<>(1);
+            resources.put(name, urls);
+        }
+
+        urls.add(url);
+    }
+}
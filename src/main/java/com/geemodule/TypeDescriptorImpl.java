@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.geemodule.api.Module;
+import com.geemodule.api.TypeDescriptor;
+
+/**
+ * Type descriptor created from the {@link TypeIndex} of a module. The class
+ * is loaded on the first call to {@link #resolve()} and then kept.
+ */
+final class TypeDescriptorImpl implements TypeDescriptor {
+    private final String name;
+
+    private final Module module;
+
+    private final String superClassName;
+
+    private final String[] interfaceNames;
+
+    private final boolean isInterface;
+
+    private final boolean isAbstract;
+
+    private final Map<String, Map<String, Object>> annotations;
+
+    private volatile Class<?> type = null;
+
+    TypeDescriptorImpl(final String name, final Module module, final String superClassName, final String[] interfaceNames, final boolean isInterface,
+        final boolean isAbstract, final Map<String, Map<String, Object>> annotations) {
+        this.name = name;
+        this.module = module;
+        this.superClassName = superClassName;
+        this.interfaceNames = interfaceNames;
+        this.isInterface = isInterface;
+        this.isAbstract = isAbstract;
+        this.annotations = annotations;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Module getModule() {
+        return module;
+    }
+
+    @Override
+    public String getSuperClassName() {
+        return superClassName;
+    }
+
+    @Override
+    public String[] getInterfaceNames() {
+        return interfaceNames.clone();
+    }
+
+    @Override
+    public boolean isInterface() {
+        return isInterface;
+    }
+
+    @Override
+    public boolean isAbstract() {
+        return isAbstract;
+    }
+
+    @Override
+    public String[] getAnnotationNames() {
+        return annotations.keySet().toArray(new String[annotations.size()]);
+    }
+
+    @Override
+    public boolean isAnnotationPresent(final String annotationName) {
+        return annotations.containsKey(annotationName);
+    }
+
+    @Override
+    public Map<String, Object> getAnnotationAttributes(final String annotationName) {
+        Map<String, Object> attributes = annotations.get(annotationName);
+        return attributes == null ? null : copyAttributes(attributes);
+    }
+
+    /**
+     * Copies the attributes including their arrays and nested annotations, as
+     * the originals are shared by every descriptor created from the cached
+     * type index.
+     */
+    private static Map<String, Object> copyAttributes(final Map<String, Object> attributes) {
+        Map<String, Object> copy = new LinkedHashMap<>(attributes.size() * 4 / 3 + 1);
+
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            copy.put(entry.getKey(), copyValue(entry.getValue()));
+        }
+
+        return Collections.unmodifiableMap(copy);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object copyValue(final Object value) {
+        if (value instanceof Object[]) {
+            Object[] values = ((Object[]) value).clone();
+
+            for (int i = 0; i < values.length; i++) {
+                values[i] = copyValue(values[i]);
+            }
+
+            return values;
+        } else if (value instanceof Map) {
+            return copyAttributes((Map<String, Object>) value);
+        } else {
+            return value;
+        }
+    }
+
+    @Override
+    public Class<?> resolve() throws ClassNotFoundException {
+        Class<?> clazz = type;
+
+        if (clazz == null) {
+            clazz = module.loadClass(name);
+            type = clazz;
+        }
+
+        return clazz;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + module.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof TypeDescriptorImpl))
+            return false;
+
+        TypeDescriptorImpl other = (TypeDescriptorImpl) obj;
+
+        return name.equals(other.name) && module.equals(other.module);
+    }
+
+    @Override
+    public String toString() {
+        return "TypeDescriptor [name=" + name + ", module=" + module.toUniqueId() + ", superClassName=" + superClassName + ", interfaceNames="
+            + Arrays.toString(interfaceNames) + ", annotations=" + annotations.keySet() + "]";
+    }
+}
@@ -0,0 +1,838 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import com.geemodule.api.Module;
+import com.geemodule.api.PackageExport;
+import com.geemodule.api.TypeDescriptor;
+
+/**
+ * Index of the type, method and field annotations and the supertypes of the
+ * public classes of a module, i.e. the classes in its exported packages. The
+ * class files are read with ASM, so no classes are loaded while indexing.
+ * Only the names are kept, which is considerably less than a full Reflections
+ * store, plus the direct super-types and the annotation attributes of each
+ * type, so that types can be described without loading them.
+ *
+ * The index can be stored in the file '.geemodule-index' in the module
+ * directory together with a checksum of the classes folder, the jars and the
+ * exported packages. As long as the checksum matches, the index is read from
+ * that file instead of scanning the module again.
+ */
+final class TypeIndex {
+    private static final Logger LOG = Logger.getLogger(TypeIndex.class.getName());
+
+    static final String FILE_NAME = ".geemodule-index";
+
+    private static final int MAGIC = 0x47454D49;
+
+    private static final int FORMAT_VERSION = 5;
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private static final String OBJECT_CLASS = "java.lang.Object";
+
+    private static final String[] NO_TYPES = new String[0];
+
+    /**
+     * Types directly annotated with an annotation, by annotation-name.
+     */
+    private final Map<String, String[]> annotatedTypes;
+
+    /**
+     * Direct sub-types (sub-classes and implementations), by super-type name.
+     */
+    private final Map<String, String[]> subTypes;
+
+    /**
+     * Annotated methods as 'className#methodName(descriptor)', by
+     * annotation-name.
+     */
+    private final Map<String, String[]> methodAnnotations;
+
+    /**
+     * Annotated fields as 'className#fieldName', by annotation-name.
+     */
+    private final Map<String, String[]> fieldAnnotations;
+
+    private final Set<String> interfaces;
+
+    private final Set<String> abstractClasses;
+
+    /**
+     * Direct super-class followed by the direct interfaces, by type name.
+     */
+    private final Map<String, String[]> superTypes;
+
+    /**
+     * Attributes of the runtime-visible type annotations, by type name and
+     * annotation-name.
+     */
+    private final Map<String, Map<String, Map<String, Object>>> typeAnnotations;
+
+    private TypeIndex(final Map<String, String[]> annotatedTypes, final Map<String, String[]> subTypes, final Map<String, String[]> methodAnnotations,
+        final Map<String, String[]> fieldAnnotations, final Set<String> interfaces, final Set<String> abstractClasses, final Map<String, String[]> superTypes,
+        final Map<String, Map<String, Map<String, Object>>> typeAnnotations) {
+        this.annotatedTypes = annotatedTypes;
+        this.subTypes = subTypes;
+        this.methodAnnotations = methodAnnotations;
+        this.fieldAnnotations = fieldAnnotations;
+        this.interfaces = interfaces;
+        this.abstractClasses = abstractClasses;
+        this.superTypes = superTypes;
+        this.typeAnnotations = typeAnnotations;
+    }
+
+    /**
+     * Creates a descriptor of the indexed type from the index alone.
+     */
+    TypeDescriptor describe(final String typeName, final Module module) {
+        String[] types = get(superTypes, typeName);
+        Map<String, Map<String, Object>> annotations = typeAnnotations.get(typeName);
+
+        return new TypeDescriptorImpl(typeName, module, types.length == 0 ? OBJECT_CLASS : types[0],
+            types.length <= 1 ? NO_TYPES : Arrays.copyOfRange(types, 1, types.length), interfaces.contains(typeName),
+            interfaces.contains(typeName) || abstractClasses.contains(typeName),
+            annotations == null ? Collections.<String, Map<String, Object>> emptyMap() : annotations);
+    }
+
+    /**
+     * Finds the names of all types in this index that extend or implement one
+     * of the super-types, directly or indirectly.
+     */
+    Set<String> findSubTypesOf(final Collection<String> superTypes) {
+        return new TreeSet<>(closure(subTypes, superTypes));
+    }
+
+    /**
+     * True if the indexed type is neither an interface nor an abstract class.
+     */
+    boolean isConcrete(final String typeName) {
+        return !interfaces.contains(typeName) && !abstractClasses.contains(typeName);
+    }
+
+    String[] findMethodsAnnotatedWith(final String annotationName) {
+        return get(methodAnnotations, annotationName).clone();
+    }
+
+    String[] findFieldsAnnotatedWith(final String annotationName) {
+        return get(fieldAnnotations, annotationName).clone();
+    }
+
+    /**
+     * Finds the names of the types annotated with the annotation, with the
+     * same semantics as Reflections' getTypesAnnotatedWith(): if
+     * honorInherited is false, this includes types that are annotated with an
+     * annotation which is itself annotated with the annotation and all
+     * sub-types of the annotated types. If honorInherited is true, sub-types
+     * are only included for annotations marked as @Inherited, and then only
+     * sub-types of annotated classes, not interfaces.
+     */
+    Set<String> findTypesAnnotatedWith(final String annotationName, final boolean annotationInherited, final boolean honorInherited) {
+        String[] annotated = get(annotatedTypes, annotationName);
+
+        Set<String> types = new TreeSet<>();
+        Collections.addAll(types, annotated);
+
+        if (honorInherited) {
+            if (annotationInherited) {
+                List<String> annotatedClasses = new ArrayList<>();
+
+                for (String type : annotated) {
+                    if (!interfaces.contains(type))
+                        annotatedClasses.add(type);
+                }
+
+                types.addAll(closure(subTypes, annotatedClasses));
+            }
+        } else {
+            Set<String> metaAnnotated = closure(annotatedTypes, types);
+            types.addAll(metaAnnotated);
+            types.addAll(closure(subTypes, types));
+        }
+
+        return types;
+    }
+
+    /**
+     * Collects all values reachable from the keys, transitively.
+     */
+    private static Set<String> closure(final Map<String, String[]> map, final Iterable<String> keys) {
+        Set<String> reached = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+
+        for (String key : keys) {
+            pending.add(key);
+        }
+
+        while (!pending.isEmpty()) {
+            for (String value : get(map, pending.poll())) {
+                if (reached.add(value))
+                    pending.add(value);
+            }
+        }
+
+        return reached;
+    }
+
+    private static String[] get(final Map<String, String[]> map, final String key) {
+        String[] values = map.get(key);
+        return values == null ? NO_TYPES : values;
+    }
+
+    /**
+     * Reads the index from the module directory if its checksum still
+     * matches. Otherwise the module is scanned and the index file written for
+     * the next start.
+     */
+    static TypeIndex loadOrScan(final File moduleDir, final Path classesDir, final List<URL> jars, final PackageExport[] packageExports) {
+        long checksum = checksum(moduleDir, jars, packageExports);
+        File indexFile = new File(moduleDir, FILE_NAME);
+
+        TypeIndex index = checksum == -1 ? null : load(indexFile, checksum);
+
+        if (index != null) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("Re-using type index '" + indexFile + "'.");
+            }
+
+            return index;
+        }
+
+        index = scan(classesDir, jars, packageExports);
+
+        if (checksum != -1)
+            index.write(indexFile, checksum);
+
+        return index;
+    }
+
+    /**
+     * Checksum over the names, sizes and last modified times of the files in
+     * the classes folder and of the jars, and over the exported packages,
+     * which decide what is indexed. Returns -1 if it cannot be computed.
+     */
+    private static long checksum(final File moduleDir, final List<URL> jars, final PackageExport[] packageExports) {
+        long checksum = BootstrapSnapshot.contentFingerprint(moduleDir, ModuleLoaderImpl.toPaths(jars));
+
+        if (checksum == -1)
+            return -1;
+
+        if (packageExports != null) {
+            for (PackageExport packageExport : packageExports) {
+                checksum = 31 * checksum + packageExport.getPrefix().hashCode();
+            }
+        }
+
+        return checksum == -1 ? 0 : checksum;
+    }
+
+    private static TypeIndex load(final File indexFile, final long checksum) {
+        if (!indexFile.isFile())
+            return null;
+
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+
+            if (buf.getInt() != MAGIC || buf.getInt() != FORMAT_VERSION || buf.getLong() != checksum)
+                return null;
+
+            Map<String, String[]> annotatedTypes = readMap(buf);
+            Map<String, String[]> subTypes = readMap(buf);
+            Map<String, String[]> methodAnnotations = readMap(buf);
+            Map<String, String[]> fieldAnnotations = readMap(buf);
+            Set<String> interfaces = new HashSet<>();
+            Collections.addAll(interfaces, BootstrapSnapshot.readStrings(buf));
+            Set<String> abstractClasses = new HashSet<>();
+            Collections.addAll(abstractClasses, BootstrapSnapshot.readStrings(buf));
+            Map<String, String[]> superTypes = readMap(buf);
+
+            int size = buf.getInt();
+            Map<String, Map<String, Map<String, Object>>> typeAnnotations = new HashMap<>(size * 4 / 3 + 1);
+
+            for (int i = 0; i < size; i++) {
+                String typeName = BootstrapSnapshot.readString(buf);
+                int count = buf.getInt();
+                Map<String, Map<String, Object>> annotations = new LinkedHashMap<>(count * 4 / 3 + 1);
+
+                for (int j = 0; j < count; j++) {
+                    annotations.put(BootstrapSnapshot.readString(buf), readAttributes(buf));
+                }
+
+                typeAnnotations.put(typeName, annotations);
+            }
+
+            return new TypeIndex(annotatedTypes, subTypes, methodAnnotations, fieldAnnotations, interfaces, abstractClasses, superTypes, typeAnnotations);
+        } catch (IOException | RuntimeException e) {
+            if (LOG.isLoggable(Level.WARNING)) {
+                LOG.log(Level.WARNING, "Unable to read type index '" + indexFile + "'. Scanning module instead.", e);
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index to a uniquely named temporary file first and then
+     * moves it into place, so that a concurrently starting JVM never reads a
+     * half written index, nor writes into the same temporary file. Failing
+     * to write, e.g. because the module directory is read-only, only means
+     * that the module is scanned again next time.
+     */
+    private void write(final File indexFile, final long checksum) {
+        File tmpFile = null;
+
+        try {
+            tmpFile = File.createTempFile(FILE_NAME, ".tmp", indexFile.getParentFile());
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(checksum);
+
+                writeMap(out, annotatedTypes);
+                writeMap(out, subTypes);
+                writeMap(out, methodAnnotations);
+                writeMap(out, fieldAnnotations);
+                BootstrapSnapshot.writeStrings(out, interfaces.toArray(new String[interfaces.size()]));
+                BootstrapSnapshot.writeStrings(out, abstractClasses.toArray(new String[abstractClasses.size()]));
+                writeMap(out, superTypes);
+
+                out.writeInt(typeAnnotations.size());
+
+                for (Map.Entry<String, Map<String, Map<String, Object>>> entry : typeAnnotations.entrySet()) {
+                    BootstrapSnapshot.writeString(out, entry.getKey());
+                    out.writeInt(entry.getValue().size());
+
+                    for (Map.Entry<String, Map<String, Object>> annotation : entry.getValue().entrySet()) {
+                        BootstrapSnapshot.writeString(out, annotation.getKey());
+                        writeAttributes(out, annotation.getValue());
+                    }
+                }
+            }
+
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (tmpFile != null)
+                tmpFile.delete();
+
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Unable to write type index '" + indexFile + "'.", e);
+            }
+        }
+    }
+
+    private static Map<String, String[]> readMap(final ByteBuffer buf) {
+        int size = buf.getInt();
+
+        Map<String, String[]> map = new HashMap<>(size * 4 / 3 + 1);
+
+        for (int i = 0; i < size; i++) {
+            map.put(BootstrapSnapshot.readString(buf), BootstrapSnapshot.readStrings(buf));
+        }
+
+        return map;
+    }
+
+    private static Map<String, Object> readAttributes(final ByteBuffer buf) {
+        int size = buf.getInt();
+
+        Map<String, Object> attributes = new LinkedHashMap<>(size * 4 / 3 + 1);
+
+        for (int i = 0; i < size; i++) {
+            attributes.put(BootstrapSnapshot.readString(buf), readValue(buf));
+        }
+
+        return attributes;
+    }
+
+    private static Object readValue(final ByteBuffer buf) {
+        char tag = (char) buf.get();
+
+        switch (tag) {
+        case 'S':
+            return BootstrapSnapshot.readString(buf);
+        case 'Z':
+            return buf.get() != 0;
+        case 'B':
+            return buf.get();
+        case 'C':
+            return buf.getChar();
+        case 'T':
+            return buf.getShort();
+        case 'I':
+            return buf.getInt();
+        case 'J':
+            return buf.getLong();
+        case 'F':
+            return buf.getFloat();
+        case 'D':
+            return buf.getDouble();
+        case '@':
+            return readAttributes(buf);
+        case '[':
+            Object[] values = new Object[buf.getInt()];
+
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readValue(buf);
+            }
+
+            return values;
+        default:
+            throw new IllegalStateException("Unknown attribute value tag '" + tag + "'.");
+        }
+    }
+
+    private static void writeAttributes(final DataOutputStream out, final Map<String, Object> attributes) throws IOException {
+        out.writeInt(attributes.size());
+
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            BootstrapSnapshot.writeString(out, entry.getKey());
+            writeValue(out, entry.getValue());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(final DataOutputStream out, final Object value) throws IOException {
+        if (value instanceof String) {
+            out.writeByte('S');
+            BootstrapSnapshot.writeString(out, (String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte('Z');
+            out.writeByte((Boolean) value ? 1 : 0);
+        } else if (value instanceof Byte) {
+            out.writeByte('B');
+            out.writeByte((Byte) value);
+        } else if (value instanceof Character) {
+            out.writeByte('C');
+            out.writeChar((Character) value);
+        } else if (value instanceof Short) {
+            out.writeByte('T');
+            out.writeShort((Short) value);
+        } else if (value instanceof Integer) {
+            out.writeByte('I');
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte('J');
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte('F');
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte('D');
+            out.writeDouble((Double) value);
+        } else if (value instanceof Map) {
+            out.writeByte('@');
+            writeAttributes(out, (Map<String, Object>) value);
+        } else {
+            Object[] values = (Object[]) value;
+
+            out.writeByte('[');
+            out.writeInt(values.length);
+
+            for (Object element : values) {
+                writeValue(out, element);
+            }
+        }
+    }
+
+    private static void writeMap(final DataOutputStream out, final Map<String, String[]> map) throws IOException {
+        out.writeInt(map.size());
+
+        for (Map.Entry<String, String[]> entry : map.entrySet()) {
+            BootstrapSnapshot.writeString(out, entry.getKey());
+            BootstrapSnapshot.writeStrings(out, entry.getValue());
+        }
+    }
+
+    /**
+     * Reads all class files in the exported packages of the classes folder
+     * and the jars.
+     */
+    static TypeIndex scan(final Path classesDir, final List<URL> jars, final PackageExport[] packageExports) {
+        final Builder builder = new Builder();
+
+        if (packageExports == null || packageExports.length == 0)
+            return builder.build();
+
+        final String[] scope = toScope(packageExports);
+
+        if (Files.isDirectory(classesDir)) {
+            final Path root = classesDir;
+
+            try {
+                Files.walkFileTree(classesDir, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        String relativePath = root.relativize(file).toString().replace(File.separatorChar, '/');
+
+                        if (relativePath.endsWith(CLASS_SUFFIX) && isInScope(relativePath, scope)) {
+                            try (InputStream in = Files.newInputStream(file)) {
+                                builder.read(in, relativePath);
+                            }
+                        }
+
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                if (LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "Unable to index types in '" + classesDir + "'.", e);
+                }
+            }
+        }
+
+        for (URL jar : jars) {
+            try (ZipFile zipFile = new ZipFile(new File(jar.toURI()))) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    String name = entry.getName();
+
+                    if (name.endsWith(CLASS_SUFFIX) && isInScope(name, scope)) {
+                        try (InputStream in = zipFile.getInputStream(entry)) {
+                            builder.read(in, name);
+                        }
+                    }
+                }
+            } catch (IOException | URISyntaxException e) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Unable to index types in '" + jar + "'.", e);
+                }
+            }
+        }
+
+        return builder.build();
+    }
+
+    /**
+     * Same as {@link #scan(Path, List, PackageExport[])} for a packaged
+     * module. The class files are read from the mapped archive.
+     */
+    static TypeIndex scan(final ModuleArchive archive, final PackageExport[] packageExports) {
+        Builder builder = new Builder();
+
+        if (packageExports == null || packageExports.length == 0)
+            return builder.build();
+
+        String[] scope = toScope(packageExports);
+
+        scanArchive(builder, archive, "classes/", scope);
+
+        for (String lib : archive.listFiles("lib/")) {
+            try {
+                scanArchive(builder, archive.openNested(lib), "", scope);
+            } catch (IOException e) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Unable to index types in '" + lib + "' of '" + archive + "'.", e);
+                }
+            }
+        }
+
+        return builder.build();
+    }
+
+    private static void scanArchive(final Builder builder, final ModuleArchive archive, final String folder, final String[] scope) {
+        for (String name : archive.list(folder)) {
+            String path = name.substring(folder.length());
+
+            if (path.endsWith(CLASS_SUFFIX) && isInScope(path, scope)) {
+                try (InputStream in = archive.openStream(name)) {
+                    builder.read(in, path);
+                } catch (IOException e) {
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.log(Level.FINE, "Unable to index type '" + name + "' in '" + archive + "'.", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts the package-exports to folder prefixes, e.g. 'com/acme/' for
+     * 'com.acme'. Sub-packages are part of the exported package.
+     */
+    private static String[] toScope(final PackageExport[] packageExports) {
+        String[] scope = new String[packageExports.length];
+
+        for (int i = 0; i < packageExports.length; i++) {
+            String prefix = packageExports[i].getPrefix().replace('.', '/');
+            scope[i] = prefix.endsWith("/") ? prefix : prefix + "/";
+        }
+
+        return scope;
+    }
+
+    private static boolean isInScope(final String path, final String[] scope) {
+        for (String prefix : scope) {
+            if (path.startsWith(prefix))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static final class Builder {
+        private final Map<String, List<String>> annotatedTypes = new HashMap<>();
+        private final Map<String, List<String>> subTypes = new HashMap<>();
+        private final Map<String, List<String>> methodAnnotations = new HashMap<>();
+        private final Map<String, List<String>> fieldAnnotations = new HashMap<>();
+        private final Set<String> interfaces = new HashSet<>();
+        private final Set<String> abstractClasses = new HashSet<>();
+        private final Map<String, List<String>> superTypes = new HashMap<>();
+        private final Map<String, Map<String, Map<String, Object>>> typeAnnotations = new HashMap<>();
+
+        private void read(final InputStream in, final String path) throws IOException {
+            try {
+                new ClassReader(in).accept(new IndexingClassVisitor(), ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            } catch (RuntimeException e) {
+                // ASM rejects class files it cannot parse, e.g. ones from a
+                // newer class file version.
+                if (LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "Unable to index type '" + path + "'.", e);
+                }
+            }
+        }
+
+        private TypeIndex build() {
+            return new TypeIndex(toArrays(annotatedTypes), toArrays(subTypes), toArrays(methodAnnotations), toArrays(fieldAnnotations), interfaces, abstractClasses,
+                toArrays(superTypes), typeAnnotations);
+        }
+
+        private static Map<String, String[]> toArrays(final Map<String, List<String>> map) {
+            Map<String, String[]> arrays = new HashMap<>(map.size() * 4 / 3 + 1);
+
+            for (Map.Entry<String, List<String>> entry : map.entrySet()) {
+                List<String> values = entry.getValue();
+                arrays.put(entry.getKey(), values.toArray(new String[values.size()]));
+            }
+
+            return arrays;
+        }
+
+        private static void add(final Map<String, List<String>> map, final String key, final String value) {
+            List<String> values = map.get(key);
+
+            if (values == null) {
+                values = new ArrayList<>(2);
+                map.put(key, values);
+            }
+
+            values.add(value);
+        }
+
+        private final class IndexingClassVisitor extends ClassVisitor {
+            private String className;
+
+            private IndexingClassVisitor() {
+                super(Opcodes.ASM5);
+            }
+
+            @Override
+            public void visit(int version, int access, String name, String signature, String superName, String[] interfaceNames) {
+                className = name.replace('/', '.');
+
+                if ((access & Opcodes.ACC_INTERFACE) != 0)
+                    interfaces.add(className);
+                else if ((access & Opcodes.ACC_ABSTRACT) != 0)
+                    abstractClasses.add(className);
+
+                String superClassName = superName == null ? OBJECT_CLASS : superName.replace('/', '.');
+                add(superTypes, className, superClassName);
+
+                if (!OBJECT_CLASS.equals(superClassName))
+                    add(subTypes, superClassName, className);
+
+                if (interfaceNames != null) {
+                    for (String interfaceName : interfaceNames) {
+                        add(subTypes, interfaceName.replace('/', '.'), className);
+                        add(superTypes, className, interfaceName.replace('/', '.'));
+                    }
+                }
+            }
+
+            @Override
+            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                // Only runtime-visible annotations, same as Reflections.
+                if (!visible)
+                    return null;
+
+                String annotationName = toClassName(desc);
+                add(annotatedTypes, annotationName, className);
+
+                Map<String, Map<String, Object>> annotations = typeAnnotations.get(className);
+
+                if (annotations == null) {
+                    annotations = new LinkedHashMap<>(4);
+                    typeAnnotations.put(className, annotations);
+                }
+
+                Map<String, Object> attributes = new LinkedHashMap<>(4);
+                annotations.put(annotationName, attributes);
+
+                return new AttributeCollector(attributes);
+            }
+
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                final String method = className + "#" + name + desc;
+
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String annotationDesc, boolean visible) {
+                        if (visible)
+                            add(methodAnnotations, toClassName(annotationDesc), method);
+
+                        return null;
+                    }
+                };
+            }
+
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                final String field = className + "#" + name;
+
+                return new FieldVisitor(Opcodes.ASM5) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String annotationDesc, boolean visible) {
+                        if (visible)
+                            add(fieldAnnotations, toClassName(annotationDesc), field);
+
+                        return null;
+                    }
+                };
+            }
+        }
+
+        /**
+         * Collects the attribute values of an annotation, see
+         * {@link TypeDescriptor#getAnnotationAttributes(String)}.
+         */
+        private static class AttributeCollector extends AnnotationVisitor {
+            private final Map<String, Object> attributes;
+
+            private AttributeCollector(final Map<String, Object> attributes) {
+                super(Opcodes.ASM5);
+                this.attributes = attributes;
+            }
+
+            void put(final String name, final Object value) {
+                attributes.put(name, value);
+            }
+
+            @Override
+            public void visit(String name, Object value) {
+                if (value instanceof Type) {
+                    put(name, ((Type) value).getClassName());
+                } else if (value.getClass().isArray()) {
+                    // Arrays of primitives are passed in one piece.
+                    Object[] values = new Object[Array.getLength(value)];
+
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = Array.get(value, i);
+                    }
+
+                    put(name, values);
+                } else {
+                    put(name, value);
+                }
+            }
+
+            @Override
+            public void visitEnum(String name, String desc, String value) {
+                put(name, value);
+            }
+
+            @Override
+            public AnnotationVisitor visitAnnotation(String name, String desc) {
+                Map<String, Object> nested = new LinkedHashMap<>(4);
+                put(name, nested);
+
+                return new AttributeCollector(nested);
+            }
+
+            @Override
+            public AnnotationVisitor visitArray(final String name) {
+                final List<Object> values = new ArrayList<>();
+
+                return new AttributeCollector(null) {
+                    @Override
+                    void put(String elementName, Object value) {
+                        values.add(value);
+                    }
+
+                    @Override
+                    public void visitEnd() {
+                        AttributeCollector.this.put(name, values.toArray());
+                    }
+                };
+            }
+        }
+
+        /**
+         * Converts a type descriptor like 'Lcom/acme/Example;' to the
+         * class-name 'com.acme.Example'.
+         */
+        private static String toClassName(final String desc) {
+            return desc.substring(1, desc.length() - 1).replace('/', '.');
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+
+/**
+ * Interned OSGi versions and version-ranges. Lookups parse the same few
+ * version strings over and over again, so each string is only parsed once
+ * ('geemodule.version.cache.size' strings are kept).
+ *
+ * For comparisons, major, minor and micro are packed into a single long.
+ * Only if these are equal does the OSGi comparison, i.e. of the qualifier,
+ * need to be done, so the ordering is exactly that of
+ * {@link Version#compareTo(Version)}.
+ */
+final class Versions {
+    private static final int CACHE_SIZE = Math.max(1, Integer.getInteger("geemodule.version.cache.size", 1000));
+
+    /**
+     * Returned by {@link #pack(Version)} if a part of the version does not
+     * fit into 21 bits.
+     */
+    static final long NOT_PACKED = -1L;
+
+    private static final int BITS = 21;
+
+    private static final int MAX_PART = (1 << BITS) - 1;
+
+    private static final ConcurrentMap<String, Version> versions = new ConcurrentHashMap<>();
+
+    private static final ConcurrentMap<String, Range> ranges = new ConcurrentHashMap<>();
+
+    private Versions() {
+    }
+
+    /**
+     * A version-range with its bounds in packed form. Behaves exactly like
+     * {@link VersionRange#includes(Version)}.
+     */
+    static final class Range {
+        private final VersionRange versionRange;
+        private final Version left;
+        private final long leftKey;
+        private final boolean leftClosed;
+        private final Version right;
+        private final long rightKey;
+        private final boolean rightClosed;
+        private final boolean empty;
+
+        private Range(final VersionRange versionRange) {
+            this.versionRange = versionRange;
+            this.left = versionRange.getLeft();
+            this.leftKey = pack(left);
+            this.leftClosed = versionRange.getLeftType() == VersionRange.LEFT_CLOSED;
+            this.right = versionRange.getRight();
+            this.rightKey = right == null ? NOT_PACKED : pack(right);
+            this.rightClosed = versionRange.getRightType() == VersionRange.RIGHT_CLOSED;
+            this.empty = versionRange.isEmpty();
+        }
+
+        VersionRange getVersionRange() {
+            return versionRange;
+        }
+
+        boolean includes(final Version version) {
+            return includes(version, pack(version));
+        }
+
+        /**
+         * Same as {@link #includes(Version)}, with the packed form of the
+         * version already at hand.
+         */
+        boolean includes(final Version version, final long key) {
+            return !empty && !isBelow(version, key) && !isAbove(version, key);
+        }
+
+        /**
+         * Checks whether the version is lower than the lower bound.
+         */
+        boolean isBelow(final Version version, final long key) {
+            int cmp = compare(left, leftKey, version, key);
+            return leftClosed ? cmp > 0 : cmp >= 0;
+        }
+
+        /**
+         * Checks whether the version is higher than the upper bound.
+         */
+        boolean isAbove(final Version version, final long key) {
+            if (right == null)
+                return false;
+
+            int cmp = compare(version, key, right, rightKey);
+            return rightClosed ? cmp > 0 : cmp >= 0;
+        }
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        @Override
+        public String toString() {
+            return versionRange.toString();
+        }
+    }
+
+    static Version parseVersion(final String version) {
+        Version v = versions.get(version);
+
+        if (v == null) {
+            v = new Version(version);
+            intern(versions, version, v);
+        }
+
+        return v;
+    }
+
+    static Range parseRange(final String versionRange) {
+        Range r = ranges.get(versionRange);
+
+        if (r == null) {
+            r = new Range(new VersionRange(versionRange));
+            intern(ranges, versionRange, r);
+        }
+
+        return r;
+    }
+
+    /**
+     * Wraps a version-range that has not been created by
+     * {@link #parseRange(String)}.
+     */
+    static Range range(final VersionRange versionRange) {
+        return new Range(versionRange);
+    }
+
+    /**
+     * Packs major, minor and micro into a long that sorts like the version,
+     * ignoring the qualifier. Returns {@link #NOT_PACKED} if a part is too
+     * large.
+     */
+    static long pack(final Version version) {
+        int major = version.getMajor();
+        int minor = version.getMinor();
+        int micro = version.getMicro();
+
+        if (major > MAX_PART || minor > MAX_PART || micro > MAX_PART)
+            return NOT_PACKED;
+
+        return (long) major << (2 * BITS) | (long) minor << BITS | micro;
+    }
+
+    /**
+     * Compares like {@link Version#compareTo(Version)}, using the packed
+     * forms where possible.
+     */
+    static int compare(final Version v1, final long key1, final Version v2, final long key2) {
+        if (key1 != key2 && key1 != NOT_PACKED && key2 != NOT_PACKED)
+            return key1 < key2 ? -1 : 1;
+
+        return v1.compareTo(v2);
+    }
+
+    private static <V> void intern(final ConcurrentMap<String, V> cache, final String key, final V value) {
+        if (cache.size() >= CACHE_SIZE)
+            cache.clear();
+
+        cache.putIfAbsent(key, value);
+    }
+}
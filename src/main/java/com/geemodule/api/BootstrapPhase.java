@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule.api;
+
+/**
+ * The phases that a module-loader goes through while bootstrapping, in this
+ * order.
+ */
+public enum BootstrapPhase {
+    /**
+     * Module directories have been scanned for their configuration.
+     */
+    SCAN,
+
+    /**
+     * Modules and their class-loaders have been created.
+     */
+    CONSTRUCT,
+
+    /**
+     * Module dependencies have been resolved.
+     */
+    RESOLVE,
+
+    /**
+     * The @Bootstrapable classes of the modules have been started.
+     */
+    START
+}
@@ -83,4 +83,23 @@ public interface Module extends Comparable<Module> {
     public Class<?> loadClassFromContainer(String name) throws ClassNotFoundException;
 
     public Class<?>[] findTypesAnnotatedWith(final Class<? extends Annotation> annotation, boolean honorInherited);
+
+    /**
+     * Same as {@link #findTypesAnnotatedWith(Class, boolean)}, but returns
+     * descriptors read from the class files instead of loading the classes.
+     */
+    public TypeDescriptor[] findTypeDescriptorsAnnotatedWith(final Class<? extends Annotation> annotation, boolean honorInherited);
+
+    /**
+     * Finds all public classes and interfaces of this module that extend or
+     * implement the type, directly or through other types. Only matching
+     * classes are loaded.
+     */
+    public Class<?>[] findSubTypesOf(Class<?> type);
+
+    /**
+     * Same as {@link #findSubTypesOf(Class)}, but only returns concrete
+     * classes, i.e. no interfaces or abstract classes.
+     */
+    public Class<?>[] findImplementationsOf(Class<?> type);
 }
\ No newline at end of file
@@ -20,12 +20,23 @@ import java.lang.annotation.Annotation;
 import java.net.URL;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 public interface ModuleLoader {
     public ModuleLoader bootstrap(String modulesRootDir);
 
+    /**
+     * Bootstraps the modules on a separate thread. The future completes with
+     * this module-loader once all phases are done.
+     */
+    public CompletableFuture<ModuleLoader> bootstrapAsync(String modulesRootDir);
+
+    public CompletableFuture<ModuleLoader> bootstrapAsync(String modulesRootDir, BootstrapListener listener);
+
     public ModuleLoader registerCache(ModuleCache cache);
 
+    public void shutdown();
+
     public Collection<Module> getLoadedModules();
 
     public Module getLoadedModule(String moduleName);
@@ -61,6 +72,17 @@ public interface ModuleLoader {
 
     public Class<?>[] findAllTypesAnnotatedWith(final Class<? extends Annotation> annotation, boolean honorInherited);
 
+    public TypeDescriptor[] findAllTypeDescriptorsAnnotatedWith(final Class<? extends Annotation> annotation, boolean honorInherited);
+
+    public Class<?>[] findSubTypesOf(Class<?> type);
+
+    public Class<?>[] findImplementationsOf(Class<?> type);
+
+    /**
+     * The class-loaders of all active modules. With lazy activation
+     * ('geemodule.activation.lazy') this activates, and thereby starts, every
+     * module that has not been used yet.
+     */
     public ClassLoader[] getModuleClassLoaders();
 
     public String[] getPublicPackages();
@@ -71,6 +93,11 @@ public interface ModuleLoader {
 
     public boolean exportsPackage(String classOrPackageName, boolean exactMatch);
 
+    /**
+     * The folders and jars holding the exported packages of all active
+     * modules. With lazy activation ('geemodule.activation.lazy') this
+     * activates, and thereby starts, every module that has not been used yet.
+     */
     public URL[] getPublicClasspath();
 
     public ClassLoader getPublicClassLoader();
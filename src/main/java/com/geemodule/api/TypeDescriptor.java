@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule.api;
+
+import java.util.Map;
+
+/**
+ * Describes a public type of a module as read from its class file, without
+ * loading the class. The class is only loaded by {@link #resolve()}.
+ */
+public interface TypeDescriptor {
+    public String getName();
+
+    public Module getModule();
+
+    /**
+     * Name of the direct super-class, 'java.lang.Object' for interfaces.
+     */
+    public String getSuperClassName();
+
+    /**
+     * Names of the directly implemented or extended interfaces.
+     */
+    public String[] getInterfaceNames();
+
+    public boolean isInterface();
+
+    public boolean isAbstract();
+
+    /**
+     * Names of the runtime-visible annotations declared on the type itself.
+     */
+    public String[] getAnnotationNames();
+
+    public boolean isAnnotationPresent(String annotationName);
+
+    /**
+     * The attribute values of the annotation as written in the class file,
+     * i.e. without defaults. Primitives are boxed, class and enum values are
+     * given by their name, arrays as Object[] and nested annotations as maps.
+     * Returns null if the type does not declare the annotation.
+     */
+    public Map<String, Object> getAnnotationAttributes(String annotationName);
+
+    /**
+     * Loads the described class with the class loader of its module.
+     */
+    public Class<?> resolve() throws ClassNotFoundException;
+}
@@ -19,84 +19,174 @@ package com.geemodule.util;
 import java.text.Normalizer;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.ibm.icu.text.Transliterator;
 
 public class Strings {
     private static final String DEFAULT_TRANSLITERATION_CODE = "Any-Latin; NFD; [:Nonspacing Mark:] remove; nfc";
 
-    private static final Map<String, Transliterator> transliteratorCache = new HashMap<>();
-
-    private static final Map<String, String> transliterateReplaceChars = new HashMap<>();
-
-    private static final String ae = "ä";
-    private static final String oe = "ö";
-    private static final String ue = "ü";
-    private static final String Ae = "Ä";
-    private static final String Oe = "Ö";
-    private static final String Ue = "Ü";
-    private static final String ss = "ß";
-    private static final String at = "@";
-    private static final String ampersand = "&";
-
-    static {
-        transliterateReplaceChars.put(ae, "ae");
-        transliterateReplaceChars.put(oe, "oe");
-        transliterateReplaceChars.put(ue, "ue");
-        transliterateReplaceChars.put(Ae, "Ae");
-        transliterateReplaceChars.put(Oe, "Oe");
-        transliterateReplaceChars.put(Ue, "Ue");
-        transliterateReplaceChars.put(ss, "ss");
-        transliterateReplaceChars.put(at, "at");
-        transliterateReplaceChars.put(ampersand, "and");
-    }
+    /**
+     * Maximum number of slugified non-ASCII texts that are remembered
+     * ('geemodule.slugify.cache.size'). ASCII texts are slugified in a single
+     * pass and are not cached.
+     */
+    private static final int SLUG_CACHE_SIZE = Math.max(0, Integer.getInteger("geemodule.slugify.cache.size", 10000));
+
+    private static final Map<String, String> slugCache = new ConcurrentHashMap<>();
+
+    /**
+     * Transliterators are not thread-safe, so each thread keeps its own.
+     */
+    private static final ThreadLocal<Map<String, Transliterator>> transliteratorCache = new ThreadLocal<Map<String, Transliterator>>() {
+        @Override
+        protected Map<String, Transliterator> initialValue() {
+            return new HashMap<>();
+        }
+    };
 
-    private static final Pattern slugifyReplacePattern1 = Pattern.compile("[^\\p{ASCII}]");
-    private static final Pattern slugifyReplacePattern2 = Pattern.compile("[^a-zA-Z0-9_\\-\\. ]");
-    private static final Pattern slugifyReplacePattern3 = Pattern.compile("\\-+");
-    private static final Pattern slugifyReplacePattern4 = Pattern.compile("\\s+");
+    private static final ThreadLocal<char[]> slugBuffer = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[128];
+        }
+    };
 
     public static String slugify(String text) {
         return slugify(text, null);
     }
 
+    /**
+     * Converts the text to a lower-case ASCII string that only consists of
+     * letters, digits and single hyphens. German umlauts are expanded, '@'
+     * becomes "at" and '&amp;' becomes "and". Other non-ASCII text is
+     * transliterated with the given ICU transliteration code first.
+     */
     public static String slugify(String text, String transliterationCode) {
         if (text == null || "".equals(text.trim()))
             return text;
 
-        if (transliterationCode == null)
-            transliterationCode = DEFAULT_TRANSLITERATION_CODE;
+        String slug = slugifyAscii(text, true);
 
-        String transliteratedText = text.replace(ae, transliterateReplaceChars.get(ae)).replace(oe, transliterateReplaceChars.get(oe)).replace(ue, transliterateReplaceChars.get(ue))
-            .replace(Ae, transliterateReplaceChars.get(Ae))
-            .replace(Oe, transliterateReplaceChars.get(Oe)).replace(Ue, transliterateReplaceChars.get(Ue)).replace(ss, transliterateReplaceChars.get(ss)).replace(at, transliterateReplaceChars.get(at))
-            .replace(ampersand, transliterateReplaceChars.get(ampersand));
+        if (slug != null)
+            return slug;
 
-        Transliterator t = transliteratorCache.get(transliterationCode);
+        boolean cacheable = SLUG_CACHE_SIZE > 0 && (transliterationCode == null || DEFAULT_TRANSLITERATION_CODE.equals(transliterationCode));
 
-        if (t == null) {
-            t = Transliterator.getInstance(transliterationCode);
-            transliteratorCache.put(transliterationCode, t);
+        if (cacheable) {
+            slug = slugCache.get(text);
+
+            if (slug != null)
+                return slug;
+        }
+
+        slug = slugifyTransliterated(text, transliterationCode == null ? DEFAULT_TRANSLITERATION_CODE : transliterationCode);
+
+        if (cacheable) {
+            if (slugCache.size() >= SLUG_CACHE_SIZE)
+                slugCache.clear();
+
+            slugCache.put(text, slug);
         }
 
-        transliteratedText = t.transform(transliteratedText);
+        return slug;
+    }
+
+    private static String slugifyTransliterated(String text, String transliterationCode) {
+        StringBuilder replaced = new StringBuilder(text.length() + 16);
+
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+
+            switch (c) {
+            case 'ä':
+                replaced.append("ae");
+                break;
+            case 'ö':
+                replaced.append("oe");
+                break;
+            case 'ü':
+                replaced.append("ue");
+                break;
+            case 'Ä':
+                replaced.append("Ae");
+                break;
+            case 'Ö':
+                replaced.append("Oe");
+                break;
+            case 'Ü':
+                replaced.append("Ue");
+                break;
+            case 'ß':
+                replaced.append("ss");
+                break;
+            case '@':
+                replaced.append("at");
+                break;
+            case '&':
+                replaced.append("and");
+                break;
+            default:
+                replaced.append(c);
+            }
+        }
 
-        transliteratedText = Normalizer.normalize(transliteratedText, Normalizer.Form.NFD).replace('_', '-').replace(' ', '-').replace(',', '-').replace('.', '-');
+        Map<String, Transliterator> transliterators = transliteratorCache.get();
+        Transliterator t = transliterators.get(transliterationCode);
+
+        if (t == null) {
+            t = Transliterator.getInstance(transliterationCode);
+            transliterators.put(transliterationCode, t);
+        }
 
-        Matcher m1 = slugifyReplacePattern1.matcher(transliteratedText);
-        transliteratedText = m1.replaceAll("");
+        String transliteratedText = Normalizer.normalize(t.transform(replaced.toString()), Normalizer.Form.NFD);
 
-        Matcher m2 = slugifyReplacePattern2.matcher(transliteratedText);
-        transliteratedText = m2.replaceAll("");
+        // Symbols have already been replaced, so remaining non-ASCII
+        // characters are simply dropped.
+        return slugifyAscii(transliteratedText, false);
+    }
 
-        Matcher m3 = slugifyReplacePattern3.matcher(transliteratedText);
-        transliteratedText = m3.replaceAll("-");
+    /**
+     * Slugifies the text in a single pass. Returns null if the text contains
+     * non-ASCII characters and replaceSymbols is set, as these need to be
+     * transliterated first. Otherwise non-ASCII characters, like all other
+     * characters that are not letters or digits, are dropped, and '_', ' ',
+     * ',', '.' and '-' become a single hyphen.
+     */
+    private static String slugifyAscii(String text, boolean replaceSymbols) {
+        int len = text.length();
+        char[] buf = slugBuffer.get();
+
+        if (buf.length < len * 3) {
+            buf = new char[len * 3];
+            slugBuffer.set(buf);
+        }
 
-        Matcher m4 = slugifyReplacePattern4.matcher(transliteratedText);
-        transliteratedText = m4.replaceAll(" ");
+        int pos = 0;
+
+        for (int i = 0; i < len; i++) {
+            char c = text.charAt(i);
+
+            if (c >= 'a' && c <= 'z' || c >= '0' && c <= '9') {
+                buf[pos++] = c;
+            } else if (c >= 'A' && c <= 'Z') {
+                buf[pos++] = (char) (c + ('a' - 'A'));
+            } else if (c == '-' || c == '_' || c == ' ' || c == ',' || c == '.') {
+                if (pos == 0 || buf[pos - 1] != '-')
+                    buf[pos++] = '-';
+            } else if (c > 127) {
+                if (replaceSymbols)
+                    return null;
+            } else if (replaceSymbols && c == '@') {
+                buf[pos++] = 'a';
+                buf[pos++] = 't';
+            } else if (replaceSymbols && c == '&') {
+                buf[pos++] = 'a';
+                buf[pos++] = 'n';
+                buf[pos++] = 'd';
+            }
+        }
 
-        return transliteratedText.toLowerCase();
+        return new String(buf, 0, pos);
     }
 }
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import com.geemodule.api.Module;
+import com.geemodule.api.ModuleLoader;
+
+/**
+ * Hammers the default class-loading mode with many threads loading the same
+ * classes through two modules that import from each other. Defining
+ * 'com.alpha.AlphaType' requires its super-class 'com.beta.BetaBase' from the
+ * other module and vice versa, so every define delegates to the other
+ * module's class-loader while the first one is busy. See
+ * {@link LockFreeClassLoadingContentionTest} for the lock-free mode.
+ */
+public class ClassLoadingContentionTest {
+    private static final int THREADS = 16;
+
+    private static final int ROUNDS = 50;
+
+    private static final long TIMEOUT_SECONDS = 30;
+
+    private static final String ALPHA_TYPE = "com.alpha.AlphaType";
+
+    private static final String BETA_TYPE = "com.beta.BetaType";
+
+    private static Path rootDir;
+
+    private static ExecutorService executor;
+
+    @BeforeClass
+    public static void createModules() throws IOException {
+        rootDir = Files.createTempDirectory("geemodule-contention");
+
+        createModule("alpha", "com.alpha", "com.beta");
+        writeClass("alpha", "com/alpha/AlphaBase", "java/lang/Object");
+        writeClass("alpha", "com/alpha/AlphaType", "com/beta/BetaBase");
+
+        createModule("beta", "com.beta", "com.alpha");
+        writeClass("beta", "com/beta/BetaBase", "java/lang/Object");
+        writeClass("beta", "com/beta/BetaType", "com/alpha/AlphaBase");
+
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @AfterClass
+    public static void deleteModules() throws IOException {
+        if (executor != null)
+            executor.shutdownNow();
+
+        if (rootDir != null) {
+            Files.walkFileTree(rootDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    /**
+     * Whether the test expects the lock-free class-loading mode.
+     */
+    protected boolean lockFree() {
+        return false;
+    }
+
+    @Test
+    public void runsInExpectedMode() {
+        assertEquals("ModuleClassLoaderImpl.LOCK_FREE", lockFree(), ModuleClassLoaderImpl.LOCK_FREE);
+    }
+
+    @Test
+    public void concurrentLoadsYieldOneClassWithoutDeadlockOrLinkageError() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            // A fresh module-loader per round, so that every round races on
+            // defining the classes.
+            ModuleLoader moduleLoader = new ModuleLoaderImpl().bootstrap(rootDir.toString());
+
+            try {
+                final ModuleClassLoaderImpl alpha = classLoader(moduleLoader, "alpha");
+                final ModuleClassLoaderImpl beta = classLoader(moduleLoader, "beta");
+                final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+
+                List<Future<Class<?>>> futures = new ArrayList<>();
+
+                for (int i = 0; i < THREADS; i++) {
+                    final ClassLoader loader = i % 2 == 0 ? alpha : beta;
+                    final String className = (i / 2) % 2 == 0 ? ALPHA_TYPE : BETA_TYPE;
+
+                    futures.add(executor.submit(new Callable<Class<?>>() {
+                        public Class<?> call() throws Exception {
+                            barrier.await();
+                            return loader.loadClass(className);
+                        }
+                    }));
+                }
+
+                Class<?> alphaType = null;
+                Class<?> betaType = null;
+
+                for (int i = 0; i < THREADS; i++) {
+                    Class<?> c = await(futures.get(i));
+
+                    if (c.getName().equals(ALPHA_TYPE)) {
+                        alphaType = alphaType == null ? c : alphaType;
+                        assertSame("Class '" + ALPHA_TYPE + "' defined more than once", alphaType, c);
+                    } else {
+                        betaType = betaType == null ? c : betaType;
+                        assertSame("Class '" + BETA_TYPE + "' defined more than once", betaType, c);
+                    }
+                }
+
+                assertSame(alpha, alphaType.getClassLoader());
+                assertSame(beta, betaType.getClassLoader());
+                assertSame(beta, alphaType.getSuperclass().getClassLoader());
+                assertSame(alpha, betaType.getSuperclass().getClassLoader());
+
+                // Every define-lock is removed once it has been released.
+                assertEquals(0, alpha.defineLocks.size());
+                assertEquals(0, beta.defineLocks.size());
+            } finally {
+                moduleLoader.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void duplicateDefineReturnsTheLoadedClass() throws Exception {
+        ModuleLoader moduleLoader = new ModuleLoaderImpl().bootstrap(rootDir.toString());
+
+        try {
+            ModuleClassLoaderImpl alpha = classLoader(moduleLoader, "alpha");
+            Class<?> alphaType = alpha.loadClass(ALPHA_TYPE);
+
+            // Defining the class again fails with a LinkageError, which is
+            // what a thread that lost the race would run into.
+            assertSame(alphaType, alpha.findLocalClass(ALPHA_TYPE));
+        } finally {
+            moduleLoader.shutdown();
+        }
+    }
+
+    private static Class<?> await(final Future<Class<?>> future) throws Exception {
+        try {
+            return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            fail("Class loading did not complete within " + TIMEOUT_SECONDS + "s, deadlocked threads: " + deadlockedThreads());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+
+            throw new AssertionError("Class loading failed", e.getCause());
+        }
+
+        return null;
+    }
+
+    private static String deadlockedThreads() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long[] ids = threads.findDeadlockedThreads();
+
+        if (ids == null)
+            return "none";
+
+        StringBuilder sb = new StringBuilder();
+
+        for (ThreadInfo info : threads.getThreadInfo(ids, true, true)) {
+            sb.append(info);
+        }
+
+        return sb.toString();
+    }
+
+    private static ModuleClassLoaderImpl classLoader(final ModuleLoader moduleLoader, final String moduleName) {
+        for (Module module : moduleLoader.getLoadedModules()) {
+            if (module.getName().equals(moduleName))
+                return (ModuleClassLoaderImpl) module.getModuleClassLoader();
+        }
+
+        fail("Module '" + moduleName + "' has not been loaded");
+        return null;
+    }
+
+    private static void createModule(final String name, final String exportPackage, final String importPackage) throws IOException {
+        File moduleDir = new File(rootDir.toFile(), name);
+        new File(moduleDir, "classes").mkdirs();
+
+        Properties config = new Properties();
+        config.setProperty("module.vendor", "test");
+        config.setProperty("module.name", name);
+        config.setProperty("module.version", "1.0.0");
+        config.setProperty("module.active", "true");
+        config.setProperty("module.export.package", exportPackage);
+        config.setProperty("module.import.package", importPackage + "@version=[1.0.0,2.0.0)");
+
+        try (OutputStream out = new FileOutputStream(new File(moduleDir, "module.properties"))) {
+            config.store(out, null);
+        }
+    }
+
+    /**
+     * Writes an empty public class with a default constructor.
+     */
+    private static void writeClass(final String moduleName, final String internalName, final String superName) throws IOException {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, internalName, null, superName, null);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+
+        File classFile = new File(rootDir.toFile(), moduleName + "/classes/" + internalName + ".class");
+        classFile.getParentFile().mkdirs();
+        Files.write(classFile.toPath(), cw.toByteArray());
+    }
+}
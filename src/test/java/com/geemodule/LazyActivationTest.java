@@ -0,0 +1,255 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import com.geemodule.api.Module;
+import com.geemodule.api.ModuleLoader;
+
+/**
+ * Lazy activation, where a module is started on the activation pool when it
+ * is first used. The bootstrap of module 'alpha' runs a loader-wide query,
+ * which is answered by the common fork-join pool and uses 'alpha' itself
+ * while its startup is still running.
+ */
+public class LazyActivationTest {
+    static {
+        // Read once when ModuleImpl is initialized.
+        System.setProperty("geemodule.activation.lazy", "true");
+    }
+
+    private static final long TIMEOUT_SECONDS = 30;
+
+    /**
+     * Annotation looked up by the bootstrap of module 'alpha'.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    public @interface Marker {
+    }
+
+    private static Path rootDir;
+
+    private static volatile ModuleLoader moduleLoader;
+
+    private static volatile Class<?>[] markedTypes;
+
+    private static volatile Throwable bootstrapError;
+
+    /**
+     * Called by the bootstrap of module 'alpha'.
+     */
+    public static void bootstrapStarted() {
+        try {
+            markedTypes = moduleLoader.findAllTypesAnnotatedWith(Marker.class, false);
+        } catch (Throwable t) {
+            bootstrapError = t;
+        }
+    }
+
+    @BeforeClass
+    public static void createModules() throws IOException {
+        rootDir = Files.createTempDirectory("geemodule-lazy");
+
+        createModule("alpha", "com.alpha");
+        writeBootstrap("alpha", "com/alpha/AlphaBootstrap");
+        writeClass("alpha", "com/alpha/AlphaMarked", Marker.class);
+
+        createModule("beta", "com.beta");
+        writeClass("beta", "com/beta/BetaMarked", Marker.class);
+    }
+
+    @AfterClass
+    public static void deleteModules() throws IOException {
+        if (rootDir != null) {
+            Files.walkFileTree(rootDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    @Test
+    public void runsInLazyMode() {
+        assertTrue("ModuleImpl was initialized before 'geemodule.activation.lazy' was set", ModuleImpl.LAZY_ACTIVATION);
+    }
+
+    @Test
+    public void bootstrapCanQueryAllModulesDuringActivation() throws Exception {
+        moduleLoader = new ModuleLoaderImpl().bootstrap(rootDir.toString());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        try {
+            Future<Class<?>> activation = executor.submit(new Callable<Class<?>>() {
+                public Class<?> call() throws Exception {
+                    return module("alpha").getModuleClassLoader().loadClass("com.alpha.AlphaMarked");
+                }
+            });
+
+            Class<?> alphaMarked;
+
+            try {
+                alphaMarked = activation.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                fail("Activation did not complete within " + TIMEOUT_SECONDS + "s:\n" + threadDump());
+                return;
+            }
+
+            assertNull(bootstrapError);
+            assertEquals(2, markedTypes.length);
+            assertSame(alphaMarked, markedTypes[0].getName().equals("com.alpha.AlphaMarked") ? markedTypes[0] : markedTypes[1]);
+        } finally {
+            executor.shutdownNow();
+            moduleLoader.shutdown();
+        }
+    }
+
+    private static Module module(final String moduleName) {
+        for (Module module : moduleLoader.getLoadedModules()) {
+            if (module.getName().equals(moduleName))
+                return module;
+        }
+
+        fail("Module '" + moduleName + "' has not been loaded");
+        return null;
+    }
+
+    private static String threadDump() {
+        StringBuilder sb = new StringBuilder();
+
+        for (ThreadInfo info : ManagementFactory.getThreadMXBean().dumpAllThreads(true, true)) {
+            sb.append(info);
+        }
+
+        return sb.toString();
+    }
+
+    private static void createModule(final String name, final String exportPackage) throws IOException {
+        File moduleDir = new File(rootDir.toFile(), name);
+        new File(moduleDir, "classes").mkdirs();
+
+        Properties config = new Properties();
+        config.setProperty("module.vendor", "test");
+        config.setProperty("module.name", name);
+        config.setProperty("module.version", "1.0.0");
+        config.setProperty("module.active", "true");
+        config.setProperty("module.export.package", exportPackage);
+        config.setProperty("module.container.import.active", "true");
+        config.setProperty("module.container.import.package", "com.geemodule");
+
+        try (OutputStream out = new FileOutputStream(new File(moduleDir, "module.properties"))) {
+            config.store(out, null);
+        }
+    }
+
+    /**
+     * Writes an empty public class with a default constructor.
+     */
+    private static void writeClass(final String moduleName, final String internalName, final Class<?> annotation) throws IOException {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, internalName, null, "java/lang/Object", null);
+        cw.visitAnnotation("L" + annotation.getName().replace('.', '/') + ";", true).visitEnd();
+        writeConstructor(cw);
+        cw.visitEnd();
+
+        write(moduleName, internalName, cw.toByteArray());
+    }
+
+    /**
+     * Writes a @Bootstrapable class whose startup() calls
+     * {@link #bootstrapStarted()}.
+     */
+    private static void writeBootstrap(final String moduleName, final String internalName) throws IOException {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, internalName, null, "java/lang/Object", new String[] { "com/geemodule/api/ModuleBootstrap" });
+        cw.visitAnnotation("Lcom/geemodule/annotation/Bootstrapable;", true).visitEnd();
+        writeConstructor(cw);
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "startup", "()V", null, null);
+        mv.visitCode();
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "com/geemodule/LazyActivationTest", "bootstrapStarted", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "shutdown", "()V", null, null);
+        mv.visitCode();
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+
+        write(moduleName, internalName, cw.toByteArray());
+    }
+
+    private static void writeConstructor(final ClassWriter cw) {
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(Opcodes.RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+
+    private static void write(final String moduleName, final String internalName, final byte[] bytes) throws IOException {
+        File classFile = new File(rootDir.toFile(), moduleName + "/classes/" + internalName + ".class");
+        classFile.getParentFile().mkdirs();
+        Files.write(classFile.toPath(), bytes);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2016 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.geemodule.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that {@link Strings#slugify(String)} returns the same result as the
+ * previous regex based pipeline in {@link LegacyStrings}. The legacy pipeline
+ * lower-cases with the default locale, so it is compared under
+ * {@link Locale#ROOT}.
+ */
+public class StringsTest {
+    private static final String RANDOM_ALPHABET = "aZ09-_ .,@&%!äöüÄÖÜßéñİı\t\n";
+
+    private Locale defaultLocale;
+
+    @Before
+    public void rememberLocale() {
+        defaultLocale = Locale.getDefault();
+        Locale.setDefault(Locale.ROOT);
+    }
+
+    @After
+    public void restoreLocale() {
+        Locale.setDefault(defaultLocale);
+    }
+
+    @Test
+    public void nullEmptyAndWhitespaceOnlyTextIsReturnedAsIs() {
+        assertSlugifiedAsBefore(null);
+        assertSlugifiedAsBefore("");
+        assertSlugifiedAsBefore(" ");
+        assertSlugifiedAsBefore("   ");
+        assertSlugifiedAsBefore("\t\n ");
+
+        assertEquals("   ", Strings.slugify("   "));
+    }
+
+    @Test
+    public void atAndAmpersandAreSpelledOut() {
+        assertSlugifiedAsBefore("me@home");
+        assertSlugifiedAsBefore("Smith & Sons");
+        assertSlugifiedAsBefore("@&@&");
+        assertSlugifiedAsBefore("Café @ München & Co.");
+
+        assertEquals("smith-and-sons", Strings.slugify("Smith & Sons"));
+        assertEquals("meathome", Strings.slugify("me@home"));
+    }
+
+    @Test
+    public void umlautsAreExpanded() {
+        assertSlugifiedAsBefore("äöüÄÖÜß");
+        assertSlugifiedAsBefore("Größe Übersicht");
+        assertSlugifiedAsBefore("Crème brûlée");
+
+        assertEquals("groesse-uebersicht", Strings.slugify("Größe Übersicht"));
+    }
+
+    @Test
+    public void runsOfSeparatorsBecomeOneHyphen() {
+        assertSlugifiedAsBefore("a--b");
+        assertSlugifiedAsBefore("a - _ , . b");
+        assertSlugifiedAsBefore("-Leading and trailing_");
+        assertSlugifiedAsBefore("a-%-b");
+        assertSlugifiedAsBefore("a\t\nb");
+        assertSlugifiedAsBefore("ü - ä");
+
+        assertEquals("a-b", Strings.slugify("a - _ , . b"));
+        assertEquals("-leading-and-trailing-", Strings.slugify("-Leading and trailing_"));
+    }
+
+    @Test
+    public void customTransliterationCode() {
+        assertEquals(LegacyStrings.slugify("Grüße & Café", "Any-Latin"), Strings.slugify("Grüße & Café", "Any-Latin"));
+        assertEquals(LegacyStrings.slugify("Module Name", "Any-Latin"), Strings.slugify("Module Name", "Any-Latin"));
+    }
+
+    @Test
+    public void resultDoesNotDependOnTheDefaultLocale() {
+        String[] texts = { "ISTANBUL", "Izmir Ili", "INFO & IDEAS", "ÜBER INDEX" };
+
+        for (String text : texts) {
+            String expected = LegacyStrings.slugify(text);
+
+            Locale.setDefault(new Locale("tr", "TR"));
+
+            try {
+                String slug = Strings.slugify(text);
+
+                assertEquals(expected, slug);
+                assertAscii(slug);
+            } finally {
+                Locale.setDefault(Locale.ROOT);
+            }
+        }
+
+        assertEquals("istanbul", Strings.slugify("ISTANBUL"));
+    }
+
+    @Test
+    public void randomTextIsSlugifiedAsBefore() {
+        Random random = new Random(42);
+
+        for (int i = 0; i < 20000; i++) {
+            int len = random.nextInt(16);
+            StringBuilder text = new StringBuilder(len);
+
+            for (int j = 0; j < len; j++) {
+                text.append(RANDOM_ALPHABET.charAt(random.nextInt(RANDOM_ALPHABET.length())));
+            }
+
+            assertSlugifiedAsBefore(text.toString());
+        }
+    }
+
+    private static void assertSlugifiedAsBefore(String text) {
+        assertEquals("slugify(\"" + text + "\")", LegacyStrings.slugify(text), Strings.slugify(text));
+        // A second call may be served from the cache.
+        assertEquals("slugify(\"" + text + "\")", LegacyStrings.slugify(text), Strings.slugify(text));
+    }
+
+    private static void assertAscii(String slug) {
+        for (int i = 0; i < slug.length(); i++) {
+            assertTrue("Non-ASCII character in '" + slug + "'", slug.charAt(i) < 128);
+        }
+    }
+}